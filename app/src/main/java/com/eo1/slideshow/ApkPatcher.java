@@ -0,0 +1,90 @@
+package com.eo1.slideshow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new APK from the installed one and a binary delta patch.
+ *
+ * Patch format (gzip-compressed, big-endian):
+ *   "EO1P" magic, format version byte (1), then a list of operations:
+ *   0x01 COPY  offset:long length:int  - bytes from the installed APK
+ *   0x02 DATA  length:int bytes        - literal bytes from the patch
+ *   0x00 END
+ */
+public class ApkPatcher {
+    private static final int MAGIC = 0x454F3150; // "EO1P"
+    private static final int FORMAT_VERSION = 1;
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_DATA = 2;
+
+    /**
+     * Apply a patch file
+     * @return SHA-256 of the written output, hex encoded
+     */
+    public static String apply(File oldApk, File patch, File output) throws IOException {
+        MessageDigest digest = AssetCache.sha256();
+        RandomAccessFile old = new RandomAccessFile(oldApk, "r");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(new FileInputStream(patch))
+        ));
+        OutputStream out = new DigestOutputStream(
+            new BufferedOutputStream(new FileOutputStream(output)), digest
+        );
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+                throw new IOException("Not an EO1 patch");
+            }
+
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int op = in.readUnsignedByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > old.length()) {
+                        throw new IOException("Patch copy out of range");
+                    }
+                    old.seek(offset);
+                    while (length > 0) {
+                        int chunk = Math.min(length, buffer.length);
+                        old.readFully(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        length -= chunk;
+                    }
+                } else if (op == OP_DATA) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Bad patch data length");
+                    }
+                    while (length > 0) {
+                        int chunk = Math.min(length, buffer.length);
+                        in.readFully(buffer, 0, chunk);
+                        out.write(buffer, 0, chunk);
+                        length -= chunk;
+                    }
+                } else {
+                    throw new IOException("Unknown patch operation " + op);
+                }
+            }
+        } finally {
+            out.close();
+            in.close();
+            old.close();
+        }
+        return AssetCache.toHex(digest.digest());
+    }
+}
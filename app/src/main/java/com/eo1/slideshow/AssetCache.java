@@ -0,0 +1,694 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent LRU disk cache for slideshow images:
+ * - Entries keyed by URL; URLs on a configured origin by their path, so
+ *   a switch between mirrors keeps the cache
+ * - Served to the WebView through request interception
+ * - Stale entries revalidated in the background (ETag / Last-Modified)
+ * - Total size bounded, least recently used entries evicted first
+ * - Metadata kept in a memory-mapped CacheIndex, so the cache is ready
+ *   without scanning the directory at startup
+ * - Images requested as display-sized variants when ImageVariants is set,
+ *   falling back to the original URL
+ * - One download per URL at a time; concurrent requests wait for it,
+ *   and a throttled prefetch runs at full speed once someone waits
+ */
+public class AssetCache {
+    private static final String TAG = "AssetCache";
+    private static final String DIR_NAME = "asset-cache";
+    private static final String INDEX_NAME = "index.bin";
+    private static final long MAX_BYTES = 256L * 1024 * 1024; // 256 MB
+    private static final long REVALIDATE_AFTER = 60 * 60 * 1000; // 1 hour
+    private static final int TIMEOUT = 15000;
+    // Cache key suffix for originals fetched past the variant negotiation
+    private static final String ORIGINAL_SUFFIX = "#original";
+
+    /**
+     * Metadata for one cached asset, as stored in the index
+     */
+    static class Entry {
+        String key;
+        String url;
+        String mimeType;
+        String etag;
+        String lastModified;
+        long size;
+        long validatedAt;
+        // Display-sized variant rather than the original
+        boolean variant;
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final Set<String> revalidating = new HashSet<String>();
+    // Cache keys being downloaded; one download per key at a time
+    private final Set<String> inFlight = new HashSet<String>();
+    // Keys in flight that a caller is waiting for; guarded by inFlight
+    private final Set<String> urgent = new HashSet<String>();
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor();
+    private CacheIndex index;
+    private volatile ImageVariants variants;
+    private volatile OriginSelector origins;
+    private final Metrics.Counter hits = Metrics.get().counter("cache.hits");
+    private final Metrics.Counter misses = Metrics.get().counter("cache.misses");
+
+    public AssetCache(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME), MAX_BYTES);
+    }
+
+    AssetCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Request display-sized variants of images, or null for originals
+     */
+    public void setVariants(ImageVariants variants) {
+        this.variants = variants;
+    }
+
+    /**
+     * Key origin URLs by path, or null to key every URL as is
+     */
+    public void setOrigins(OriginSelector origins) {
+        this.origins = origins;
+    }
+
+    /**
+     * Whether a URL is a slideshow image this cache should handle
+     */
+    public static boolean isCacheable(String url) {
+        if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return false;
+        }
+        String path = url;
+        int query = path.indexOf('?');
+        if (query != -1) path = path.substring(0, query);
+        int fragment = path.indexOf('#');
+        if (fragment != -1) path = path.substring(0, fragment);
+        path = path.toLowerCase(Locale.US);
+        return path.endsWith(".jpg") || path.endsWith(".jpeg") || path.endsWith(".png")
+            || path.endsWith(".gif") || path.endsWith(".webp") || path.endsWith(".bmp");
+    }
+
+    /**
+     * Serve a WebView request from disk, fetching and storing it on a miss.
+     * Called on the WebView's network thread, so blocking here is fine.
+     * @return response to hand to the WebView, or null to let it load normally
+     */
+    public WebResourceResponse intercept(String url) {
+        if (!isCacheable(url)) {
+            return null;
+        }
+
+        Entry entry = get(url);
+        if (entry != null) {
+            hits.inc();
+            if (System.currentTimeMillis() - entry.validatedAt > REVALIDATE_AFTER) {
+                revalidateAsync(url);
+            }
+        } else {
+            misses.inc();
+            try {
+                entry = fetch(url);
+            } catch (IOException e) {
+                Log.w(TAG, "Fetch failed for " + url + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        if (entry == null) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(dataFile(entry.key));
+            return new WebResourceResponse(entry.mimeType, null, in);
+        } catch (IOException e) {
+            synchronized (this) {
+                remove(hash(url));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Look up a cached entry and mark it as recently used
+     * @return entry, or null if not cached
+     */
+    public synchronized Entry get(String url) {
+        CacheIndex idx = index();
+        if (idx == null) {
+            return null;
+        }
+        long hash = hash(url);
+        int record = idx.find(hash);
+        if (record < 0) {
+            return null;
+        }
+        if (!dataFile(keyFor(hash)).exists()) {
+            idx.remove(hash);
+            return null;
+        }
+        idx.touch(record, System.currentTimeMillis());
+        return toEntry(idx, record, url);
+    }
+
+    /**
+     * Download a URL into the cache, replacing any existing entry
+     * @return stored entry, or null if the server did not return an image
+     */
+    public Entry fetch(String url) throws IOException {
+        return fetch(url, null);
+    }
+
+    /**
+     * Download a URL into the cache, throttled by a shared bandwidth limiter
+     * @param limiter bandwidth cap, or null for unlimited
+     */
+    public Entry fetch(String url, BandwidthLimiter limiter) throws IOException {
+        String key = keyOf(url);
+        if (!claim(key)) {
+            // Downloaded by someone else while we waited
+            return get(url);
+        }
+        try {
+            return download(url, limiter);
+        } finally {
+            release(key);
+        }
+    }
+
+    private Entry download(String url, BandwidthLimiter limiter) throws IOException {
+        ImageVariants negotiator = variants;
+        String variantUrl = negotiator != null ? negotiator.rewrite(url) : url;
+        if (!variantUrl.equals(url)) {
+            HttpClient.Call call = open(variantUrl, limiter);
+            try {
+                negotiator.addHeaders(call.connection());
+                int code = call.execute();
+                if (code == 200) {
+                    Entry entry = store(url, call, limiter, true);
+                    if (entry != null) {
+                        negotiator.reportSupported(url);
+                        return entry;
+                    }
+                }
+                if (code != 200 && (code < 400 || code >= 500)) {
+                    // Server or redirect trouble, not a missing variant
+                    return null;
+                }
+            } finally {
+                call.close();
+            }
+        }
+
+        HttpClient.Call call = open(url, limiter);
+        try {
+            if (negotiator != null) {
+                negotiator.addHeaders(call.connection());
+            }
+            if (call.execute() != 200) {
+                return null;
+            }
+            Entry entry = store(url, call, limiter, false);
+            if (entry != null && !variantUrl.equals(url)) {
+                // Original exists but the variant did not
+                negotiator.reportUnsupported(url);
+            }
+            return entry;
+        } finally {
+            call.close();
+        }
+    }
+
+    /**
+     * Throttled downloads are background work and use the background pool
+     */
+    private static HttpClient.Call open(String url, BandwidthLimiter limiter) throws IOException {
+        return limiter != null
+            ? HttpClient.get().openBackground(url, TIMEOUT)
+            : HttpClient.get().open(url, TIMEOUT);
+    }
+
+    /**
+     * Local file for a URL, downloading it first if it is not cached
+     * @return cached file, or null if the server did not return an image
+     */
+    public File getFile(String url) throws IOException {
+        Entry entry = get(url);
+        if (entry == null) {
+            entry = fetch(url);
+        } else if (System.currentTimeMillis() - entry.validatedAt > REVALIDATE_AFTER) {
+            revalidateAsync(url);
+        }
+        return entry != null ? dataFile(entry.key) : null;
+    }
+
+    /**
+     * Local file for the full-resolution original of an image, never a
+     * display-sized variant. Cached separately from getFile(); used for
+     * tiled decoding of very large images.
+     */
+    public File getOriginalFile(String url) throws IOException {
+        String key = url + ORIGINAL_SUFFIX;
+        Entry entry = get(key);
+        if (entry == null) {
+            if (!claim(keyOf(key))) {
+                entry = get(key);
+                return entry != null ? dataFile(entry.key) : null;
+            }
+            HttpClient.Call call = HttpClient.get().open(url, TIMEOUT);
+            try {
+                if (call.execute() != 200) {
+                    return null;
+                }
+                entry = store(key, call, null, false);
+            } finally {
+                call.close();
+                release(keyOf(key));
+            }
+        }
+        return entry != null ? dataFile(entry.key) : null;
+    }
+
+    /**
+     * Local file for a URL if it is cached, without any network access
+     */
+    public File getCachedFile(String url) {
+        Entry entry = get(url);
+        return entry != null ? dataFile(entry.key) : null;
+    }
+
+    /**
+     * Revalidate a cached entry in the background. Keeps serving the cached
+     * copy if the server is unreachable.
+     */
+    public void revalidateAsync(final String url) {
+        final String key = keyOf(url);
+        synchronized (revalidating) {
+            if (!revalidating.add(key)) {
+                return;
+            }
+        }
+        revalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                // A download of the same URL is already refreshing it
+                if (!tryClaim(key)) {
+                    synchronized (revalidating) {
+                        revalidating.remove(key);
+                    }
+                    return;
+                }
+                try {
+                    revalidate(url);
+                } catch (IOException e) {
+                    Log.w(TAG, "Revalidation failed for " + url + ": " + e.getMessage());
+                } finally {
+                    release(key);
+                    synchronized (revalidating) {
+                        revalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Take the download slot for a cache key, or wait for the download
+     * already running to finish; that download then stops throttling
+     * @return true if the caller downloads and must release() the key,
+     *         false if another download had it
+     */
+    private boolean claim(String key) throws InterruptedIOException {
+        synchronized (inFlight) {
+            if (inFlight.add(key)) {
+                return true;
+            }
+            urgent.add(key);
+            try {
+                while (inFlight.contains(key)) {
+                    inFlight.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + key);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Take the download slot for a cache key unless it is taken
+     */
+    private boolean tryClaim(String key) {
+        synchronized (inFlight) {
+            return inFlight.add(key);
+        }
+    }
+
+    private boolean isUrgent(String key) {
+        synchronized (inFlight) {
+            return urgent.contains(key);
+        }
+    }
+
+    private void release(String key) {
+        synchronized (inFlight) {
+            inFlight.remove(key);
+            urgent.remove(key);
+            inFlight.notifyAll();
+        }
+    }
+
+    private void revalidate(String url) throws IOException {
+        Entry cached;
+        synchronized (this) {
+            CacheIndex idx = index();
+            int record = idx != null ? idx.find(hash(url)) : -1;
+            cached = record >= 0 ? toEntry(idx, record, url) : null;
+        }
+        if (cached == null) {
+            return;
+        }
+
+        // The representation that is cached, so validators match. A cached
+        // variant the server no longer offers is replaced by the original.
+        ImageVariants negotiator = variants;
+        String requestUrl = url;
+        if (cached.variant && negotiator != null) {
+            requestUrl = negotiator.rewrite(url);
+        }
+        boolean variant = !requestUrl.equals(url);
+        HttpClient.Call call = HttpClient.get().openBackground(requestUrl, TIMEOUT);
+        try {
+            HttpURLConnection conn = call.connection();
+            if (negotiator != null) {
+                negotiator.addHeaders(conn);
+            }
+            if (variant == cached.variant) {
+                if (cached.etag != null) {
+                    conn.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+
+            int code = call.execute();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                synchronized (this) {
+                    int record = index.find(hash(url));
+                    if (record >= 0) {
+                        index.setValidatedAt(record, System.currentTimeMillis());
+                    }
+                }
+            } else if (code == 200) {
+                store(url, call, null, variant);
+            } else if (variant && code >= 400 && code < 500) {
+                // Variant refused, not the image gone: keep the cached copy,
+                // the next revalidation asks for the original
+                negotiator.reportUnsupported(url);
+            } else if (code == 404 || code == 410) {
+                synchronized (this) {
+                    remove(hash(url));
+                }
+            }
+        } finally {
+            call.close();
+        }
+    }
+
+    /**
+     * Stream a response body to disk
+     */
+    private Entry store(String url, HttpClient.Call call, BandwidthLimiter limiter, boolean variant)
+            throws IOException {
+        String mimeType = call.contentType();
+        if (mimeType == null || !mimeType.startsWith("image/")) {
+            return null;
+        }
+        int semicolon = mimeType.indexOf(';');
+        if (semicolon != -1) {
+            mimeType = mimeType.substring(0, semicolon).trim();
+        }
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        long hash = hash(url);
+        String key = keyFor(hash);
+        // Unique per download: a file being written is never shared
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        String claimed = keyOf(url);
+        long size = 0;
+
+        InputStream in = call.body();
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (limiter != null && !isUrgent(claimed)) {
+                    limiter.acquire(read);
+                }
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } catch (InterruptedException e) {
+            tmp.delete();
+            throw new InterruptedIOException("Download interrupted");
+        } finally {
+            out.close();
+            in.close();
+        }
+
+        String etag = call.header("ETag");
+        String lastModified = call.header("Last-Modified");
+
+        synchronized (this) {
+            CacheIndex idx = index();
+            if (idx == null) {
+                tmp.delete();
+                throw new IOException("Cache index unavailable");
+            }
+            idx.remove(hash);
+            File data = dataFile(key);
+            if (!tmp.renameTo(data)) {
+                tmp.delete();
+                throw new IOException("Cannot commit " + data);
+            }
+            int record = idx.put(hash, size, System.currentTimeMillis(), mimeType, etag, lastModified, variant);
+            Entry entry = toEntry(idx, record, url);
+            trimToSize(maxBytes);
+            try {
+                idx.compactIfNeeded();
+            } catch (IOException e) {
+                Log.w(TAG, "Index compaction failed: " + e.getMessage());
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the cache fits in maxSize
+     */
+    public synchronized void trimToSize(long maxSize) {
+        CacheIndex idx = index();
+        if (idx == null) {
+            return;
+        }
+        long excess = idx.getTotalBytes() - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+        for (int record : idx.oldest(excess)) {
+            remove(idx.getKey(record));
+        }
+    }
+
+    private void remove(long hash) {
+        if (index != null) {
+            index.remove(hash);
+        }
+        dataFile(keyFor(hash)).delete();
+    }
+
+    /**
+     * Open the index on first use. Cold start cost is one mapped read of
+     * the index file, independent of the number of files in the directory.
+     */
+    private CacheIndex index() {
+        if (index != null) {
+            return index;
+        }
+        long start = SystemClock.elapsedRealtime();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir);
+            return null;
+        }
+        File file = new File(dir, INDEX_NAME);
+        if (!file.exists()) {
+            // Files from an older cache layout, or orphans of a lost index
+            clearDirectory();
+        }
+        try {
+            index = new CacheIndex(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cache index unreadable, starting empty: " + e.getMessage());
+            file.delete();
+            clearDirectory();
+            try {
+                index = new CacheIndex(file);
+            } catch (IOException retry) {
+                Log.e(TAG, "Cannot create cache index", retry);
+                return null;
+            }
+        }
+        deleteTempFiles();
+        Metrics.get().histogram("cache.index_open_ms").record(SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Opened index: " + index.getLiveCount() + " entries, " + index.getTotalBytes() + " bytes");
+        return index;
+    }
+
+    /**
+     * Partial downloads left by a crash or kill
+     */
+    private void deleteTempFiles() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void clearDirectory() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static Entry toEntry(CacheIndex idx, int record, String url) {
+        Entry entry = new Entry();
+        entry.key = keyFor(idx.getKey(record));
+        entry.url = url;
+        entry.mimeType = idx.getMimeType(record);
+        entry.etag = idx.getEtag(record);
+        entry.lastModified = idx.getLastModified(record);
+        entry.size = idx.getSize(record);
+        entry.validatedAt = idx.getValidatedAt(record);
+        entry.variant = idx.isVariant(record);
+        return entry;
+    }
+
+    private File dataFile(String key) {
+        return new File(dir, key + ".data");
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Whether a URL is cached, without touching its recency
+     */
+    public synchronized boolean contains(String url) {
+        CacheIndex idx = index();
+        long hash = hash(url);
+        return idx != null && idx.find(hash) >= 0 && dataFile(keyFor(hash)).exists();
+    }
+
+    /**
+     * Stop background revalidation and flush the index
+     */
+    public void shutdown() {
+        revalidator.shutdownNow();
+        synchronized (this) {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close index: " + e.getMessage());
+                }
+                index = null;
+            }
+        }
+    }
+
+    /**
+     * Cache key for a URL: its path if a configured origin serves it
+     */
+    private String keyOf(String url) {
+        OriginSelector selector = origins;
+        return selector != null ? selector.cacheKey(url) : url;
+    }
+
+    private long hash(String url) {
+        return CacheIndex.hashKey(keyOf(url));
+    }
+
+    /**
+     * Data file name for an index key
+     */
+    static String keyFor(long hash) {
+        String hex = Long.toHexString(hash);
+        while (hex.length() < 16) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
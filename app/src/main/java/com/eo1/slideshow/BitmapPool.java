@@ -0,0 +1,89 @@
+package com.eo1.slideshow;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of mutable bitmaps reused as decode targets (inBitmap), so the
+ * native slideshow decodes each slide without allocating new pixel memory.
+ * Since Android 4.4 any pooled bitmap with enough bytes can be reused.
+ */
+public class BitmapPool {
+    private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+    private long maxBytes;
+    private long size;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take the smallest pooled bitmap that can hold the given dimensions
+     * @return reusable bitmap, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap.getConfig() == config && bitmap.getAllocationByteCount() >= needed
+                    && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            bitmaps.remove(best);
+            size -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * Return a bitmap that is no longer displayed
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        bitmaps.addLast(bitmap);
+        size += bitmap.getAllocationByteCount();
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Recycle oldest bitmaps until the pool fits in maxSize
+     */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Bitmap> it = bitmaps.iterator();
+        while (size > maxSize && it.hasNext()) {
+            Bitmap eldest = it.next();
+            it.remove();
+            size -= eldest.getAllocationByteCount();
+            eldest.recycle();
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+        return 4;
+    }
+}
@@ -0,0 +1,108 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Start-up timings, kept across restarts so they can be compared between
+ * releases:
+ * - first_pixel: until the first frame is on screen
+ * - content: until the live slideshow has taken over
+ * Measured from device boot when started by BootReceiver, otherwise from
+ * activity creation.
+ */
+public class BootTimings {
+    private static final String TAG = "BootTimings";
+    private static final String PREFS_NAME = "eo1_boot_timings";
+    private static final String KEY_HISTORY = "history";
+    private static final int MAX_HISTORY = 20;
+
+    private final SharedPreferences prefs;
+    private final boolean fromBoot;
+    private final long start;
+    private long firstPixel = -1;
+    private long content = -1;
+    private boolean saved = false;
+
+    /**
+     * @param fromBoot whether the activity was launched at boot
+     */
+    public BootTimings(Context context, boolean fromBoot) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.fromBoot = fromBoot;
+        // elapsedRealtime counts from boot
+        this.start = fromBoot ? 0 : SystemClock.elapsedRealtime();
+    }
+
+    public void markFirstPixel() {
+        if (firstPixel < 0) {
+            firstPixel = SystemClock.elapsedRealtime() - start;
+            Metrics.get().histogram(fromBoot ? "boot.first_pixel_ms" : "launch.first_pixel_ms")
+                .record(firstPixel);
+            Log.i(TAG, (fromBoot ? "Boot" : "Launch") + " to first pixel: " + firstPixel + "ms");
+            save();
+        }
+    }
+
+    public void markContent() {
+        if (content < 0) {
+            content = SystemClock.elapsedRealtime() - start;
+            Metrics.get().histogram(fromBoot ? "boot.content_ms" : "launch.content_ms")
+                .record(content);
+            Log.i(TAG, (fromBoot ? "Boot" : "Launch") + " to content: " + content + "ms");
+            save();
+        }
+    }
+
+    public long getFirstPixel() {
+        return firstPixel;
+    }
+
+    public long getContent() {
+        return content;
+    }
+
+    /**
+     * Recorded starts, oldest first, as a JSON array
+     */
+    public String getHistoryJson() {
+        return prefs.getString(KEY_HISTORY, "[]");
+    }
+
+    /**
+     * Write this start as the newest history entry, replacing the entry
+     * written earlier by the same start
+     */
+    private void save() {
+        try {
+            JSONArray history = new JSONArray(getHistoryJson());
+            JSONObject entry = new JSONObject();
+            entry.put("version", BuildConfig.VERSION_CODE);
+            entry.put("from_boot", fromBoot);
+            entry.put("first_pixel_ms", firstPixel);
+            entry.put("content_ms", content);
+            entry.put("time", System.currentTimeMillis());
+
+            JSONArray updated = new JSONArray();
+            int keep = history.length();
+            if (saved && keep > 0) {
+                // Later mark of this start: replace its earlier entry
+                keep--;
+            }
+            for (int i = Math.max(0, keep - (MAX_HISTORY - 1)); i < keep; i++) {
+                updated.put(history.get(i));
+            }
+            updated.put(entry);
+            prefs.edit().putString(KEY_HISTORY, updated.toString()).apply();
+            saved = true;
+        } catch (JSONException e) {
+            prefs.edit().remove(KEY_HISTORY).apply();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.eo1.slideshow;
+
+import android.app.Activity;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+import android.view.WindowManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Ambient-light-driven screen brightness:
+ * - Light sensor sampled about once a second
+ * - Lux smoothed in log space, then mapped through a lux-to-brightness curve
+ * - Window brightness only updated when the change would be visible
+ * - Page can force a fixed level or replace the curve through the bridge
+ */
+public class BrightnessController implements SensorEventListener {
+    private static final String TAG = "BrightnessController";
+    private static final int SAMPLE_PERIOD_US = 1000000; // 1 second
+    private static final float SMOOTHING = 0.2f; // weight of each new sample
+    // Minimum change in perceived brightness (square root of level)
+    private static final float PERCEPTUAL_THRESHOLD = 0.04f;
+    private static final float MIN_BRIGHTNESS = 0.01f;
+
+    // Default curve: {lux, percent} points, interpolated on log10(lux)
+    static final String DEFAULT_CURVE = "[[0,5],[10,15],[100,35],[1000,70],[10000,100]]";
+
+    private final Activity activity;
+    private final DeviceConfig deviceConfig;
+    private final SensorManager sensorManager;
+    private final Sensor lightSensor;
+    private final Metrics.Counter updates = Metrics.get().counter("brightness.updates");
+    private float[][] curve;
+    private boolean auto;
+    private boolean listening = false;
+    private float smoothedLogLux = Float.NaN;
+    private float applied = -1f;
+    private boolean sleeping = false;
+    private float awakeLevel = -1f;
+
+    public BrightnessController(Activity activity, DeviceConfig deviceConfig) {
+        this.activity = activity;
+        this.deviceConfig = deviceConfig;
+        this.sensorManager = (SensorManager) activity.getSystemService(Context.SENSOR_SERVICE);
+        this.lightSensor = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT) : null;
+        this.auto = deviceConfig.isAutoBrightness();
+        this.curve = parseCurve(deviceConfig.getBrightnessCurve());
+        if (curve == null) {
+            curve = parseCurve(DEFAULT_CURVE);
+        }
+        if (lightSensor == null) {
+            Log.w(TAG, "No light sensor, automatic brightness unavailable");
+        }
+        int manual = deviceConfig.getManualBrightness();
+        if (!auto && manual >= 0) {
+            apply(percentToLevel(manual), false);
+        }
+    }
+
+    /**
+     * Start sampling the sensor. Must be called on the UI thread.
+     */
+    public void resume() {
+        if (auto && !sleeping && lightSensor != null && !listening) {
+            listening = sensorManager.registerListener(this, lightSensor, SAMPLE_PERIOD_US);
+        }
+    }
+
+    /**
+     * Stop sampling, e.g. while the activity is paused
+     */
+    public void pause() {
+        if (listening) {
+            sensorManager.unregisterListener(this);
+            listening = false;
+        }
+    }
+
+    /**
+     * Fixed brightness from the page; turns automatic control off until
+     * setAuto(true). Both persisted. Safe to call from any thread.
+     */
+    public void setManual(int percent) {
+        final float level = percentToLevel(percent);
+        deviceConfig.setManualBrightness(percent);
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                auto = false;
+                pause();
+                if (sleeping) {
+                    awakeLevel = level;
+                } else {
+                    apply(level, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Turn automatic control on or off (persisted). Safe to call from any thread.
+     */
+    public void setAuto(final boolean enabled) {
+        deviceConfig.setAutoBrightness(enabled);
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                auto = enabled;
+                if (enabled) {
+                    smoothedLogLux = Float.NaN;
+                    resume();
+                } else {
+                    pause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replace the lux-to-brightness curve (persisted)
+     * @param json array of [lux, percent] points in increasing lux order
+     * @return false if the curve is malformed
+     */
+    public boolean setCurve(String json) {
+        float[][] parsed = parseCurve(json);
+        if (parsed == null) {
+            return false;
+        }
+        deviceConfig.setBrightnessCurve(json);
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                curve = parseCurve(deviceConfig.getBrightnessCurve());
+                if (auto && !sleeping && !Float.isNaN(smoothedLogLux)) {
+                    apply(levelFor(smoothedLogLux), false);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Minimum brightness and no sensor sampling until wake().
+     * Must be called on the UI thread.
+     */
+    public void sleep() {
+        if (sleeping) {
+            return;
+        }
+        sleeping = true;
+        pause();
+        awakeLevel = applied;
+        apply(MIN_BRIGHTNESS, false);
+    }
+
+    /**
+     * Restore the level from before sleep() and resume automatic control
+     */
+    public void wake() {
+        if (!sleeping) {
+            return;
+        }
+        sleeping = false;
+        if (awakeLevel >= 0) {
+            apply(awakeLevel, false);
+        }
+        smoothedLogLux = Float.NaN;
+        resume();
+    }
+
+    public String getStateJson() {
+        float lux = Float.isNaN(smoothedLogLux) ? -1f : (float) Math.pow(10, smoothedLogLux) - 1f;
+        return "{\"auto\":" + auto
+            + ",\"sensor\":" + (lightSensor != null)
+            + ",\"lux\":" + Math.round(lux)
+            + ",\"brightness\":" + Math.round(applied * 100)
+            + "}";
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (!auto) {
+            return;
+        }
+        float logLux = (float) Math.log10(Math.max(0f, event.values[0]) + 1f);
+        if (Float.isNaN(smoothedLogLux)) {
+            smoothedLogLux = logLux;
+        } else {
+            smoothedLogLux += SMOOTHING * (logLux - smoothedLogLux);
+        }
+        apply(levelFor(smoothedLogLux), true);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // Not used
+    }
+
+    /**
+     * Update the window only if the change passes the perceptual threshold
+     */
+    private void apply(float level, boolean thresholded) {
+        if (applied >= 0) {
+            float delta = Math.abs((float) Math.sqrt(level) - (float) Math.sqrt(applied));
+            if (thresholded ? delta < PERCEPTUAL_THRESHOLD : level == applied) {
+                return;
+            }
+        }
+        applied = level;
+        updates.inc();
+        WindowManager.LayoutParams layout = activity.getWindow().getAttributes();
+        layout.screenBrightness = level;
+        activity.getWindow().setAttributes(layout);
+    }
+
+    private static float percentToLevel(int percent) {
+        return Math.max(MIN_BRIGHTNESS, Math.min(1f, percent / 100f));
+    }
+
+    private float levelFor(float logLux) {
+        float[][] points = curve;
+        float percent;
+        if (logLux <= points[0][0]) {
+            percent = points[0][1];
+        } else if (logLux >= points[points.length - 1][0]) {
+            percent = points[points.length - 1][1];
+        } else {
+            int i = 1;
+            while (points[i][0] < logLux) {
+                i++;
+            }
+            float t = (logLux - points[i - 1][0]) / (points[i][0] - points[i - 1][0]);
+            percent = points[i - 1][1] + t * (points[i][1] - points[i - 1][1]);
+        }
+        return Math.max(MIN_BRIGHTNESS, Math.min(1f, percent / 100f));
+    }
+
+    /**
+     * Parse [[lux, percent], ...] into {log10(lux + 1), percent} points
+     * @return points, or null if malformed
+     */
+    static float[][] parseCurve(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            if (array.length() == 0) {
+                return null;
+            }
+            float[][] points = new float[array.length()][2];
+            for (int i = 0; i < array.length(); i++) {
+                JSONArray point = array.getJSONArray(i);
+                points[i][0] = (float) Math.log10(Math.max(0, point.getDouble(0)) + 1);
+                points[i][1] = (float) point.getDouble(1);
+                if (i > 0 && points[i][0] <= points[i - 1][0]) {
+                    return null;
+                }
+            }
+            return points;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
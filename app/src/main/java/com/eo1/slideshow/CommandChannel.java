@@ -0,0 +1,254 @@
+package com.eo1.slideshow;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Batched, asynchronous command channel for the JavaScript bridge:
+ * - Page submits a JSON array of commands in one JS-to-Java call
+ * - Commands run in order on a background thread, off the JS thread
+ * - Repeated set commands in a batch collapse to the last one
+ * - All results go back to the sending page in a single evaluateJavascript call to
+ *   window.EO1Callback(batchId, results)
+ *
+ * Command format: {"cmd": "setBrightness", "args": {"percent": 40}}
+ * Result format: {"ok": true, "result": ...} or {"ok": false, "error": "..."}
+ */
+public class CommandChannel {
+    private static final String TAG = "CommandChannel";
+    private static final String CALLBACK = "EO1Callback";
+
+    private final MainActivity.EO1Interface bridge;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Metrics.Histogram batchSizes = Metrics.get().histogram("bridge.batch_size");
+
+    public CommandChannel(MainActivity.EO1Interface bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Queue a batch; returns immediately
+     * @param page WebView the batch came from, which receives the results
+     */
+    public void submit(final int batchId, final String commandsJson, final WebView page) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(batchId, runBatch(commandsJson), page);
+            }
+        });
+    }
+
+    /**
+     * Queue a batch pushed by the server; failures are only logged
+     */
+    public void submitRemote(final String commandsJson) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                JSONArray results = runBatch(commandsJson);
+                for (int i = 0; i < results.length(); i++) {
+                    JSONObject result = results.optJSONObject(i);
+                    if (result != null && !result.optBoolean("ok")) {
+                        Log.w(TAG, "Pushed command " + i + " failed: " + result.optString("error"));
+                    }
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private JSONArray runBatch(String commandsJson) {
+        JSONArray results = new JSONArray();
+        JSONArray commands;
+        try {
+            commands = new JSONArray(commandsJson != null ? commandsJson : "");
+        } catch (JSONException e) {
+            results.put(error("Malformed batch"));
+            return results;
+        }
+        batchSizes.record(commands.length());
+
+        for (int i = 0; i < commands.length(); i++) {
+            JSONObject command = commands.optJSONObject(i);
+            if (command == null) {
+                results.put(error("Malformed command"));
+                continue;
+            }
+            String name = command.optString("cmd");
+            JSONObject args = command.optJSONObject("args");
+            if (args == null) {
+                args = new JSONObject();
+            }
+            if (isSetter(name) && isSupersededLater(commands, i, name)) {
+                results.put(ok("coalesced"));
+                continue;
+            }
+            try {
+                results.put(ok(execute(name, args)));
+            } catch (Exception e) {
+                results.put(error(e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run one command through the same code as the individual bridge methods
+     */
+    private Object execute(String name, JSONObject args) throws Exception {
+        if (name.equals("setBrightness")) {
+            bridge.setBrightness(args.getInt("percent"));
+        } else if (name.equals("setAutoBrightness")) {
+            bridge.setAutoBrightness(args.getBoolean("enabled"));
+        } else if (name.equals("setBrightnessCurve")) {
+            if (!bridge.setBrightnessCurve(args.getJSONArray("curve").toString())) {
+                throw new IllegalArgumentException("Malformed curve");
+            }
+        } else if (name.equals("getBrightnessState")) {
+            return parse(bridge.getBrightnessState());
+        } else if (name.equals("prefetch")) {
+            bridge.prefetch(args.getJSONArray("urls").toString());
+        } else if (name.equals("playVideo")) {
+            bridge.playVideo(args.getString("url"), args.optBoolean("loop", false));
+        } else if (name.equals("preloadVideo")) {
+            bridge.preloadVideo(args.getString("url"));
+        } else if (name.equals("stopVideo")) {
+            bridge.stopVideo();
+        } else if (name.equals("showLargeImage")) {
+            bridge.showLargeImage(args.getString("url"), args.optLong("duration_ms", 30000));
+        } else if (name.equals("stopLargeImage")) {
+            bridge.stopLargeImage();
+        } else if (name.equals("setPrefetchConfig")) {
+            bridge.setPrefetchConfig(args.getInt("depth"), args.getInt("max_kbps"));
+        } else if (name.equals("getPrefetchStats")) {
+            return parse(bridge.getPrefetchStats());
+        } else if (name.equals("getSyncStatus")) {
+            return parse(bridge.getSyncStatus());
+        } else if (name.equals("setStaticPeers")) {
+            bridge.setStaticPeers(args.optString("peers", ""));
+        } else if (name.equals("getPeers")) {
+            return parse(bridge.getPeers());
+        } else if (name.equals("getOrigin")) {
+            return bridge.getOrigin();
+        } else if (name.equals("getOriginStatus")) {
+            return parse(bridge.getOriginStatus());
+        } else if (name.equals("getMemoryState")) {
+            return parse(bridge.getMemoryState());
+        } else if (name.equals("setOrigins")) {
+            bridge.setOrigins(args.optString("origins", ""));
+        } else if (name.equals("getMetrics")) {
+            return parse(bridge.getMetrics());
+        } else if (name.equals("getMetricsHistory")) {
+            return parse(bridge.getMetricsHistory());
+        } else if (name.equals("getWatchdogIncidents")) {
+            return parse(bridge.getWatchdogIncidents());
+        } else if (name.equals("getBootTimings")) {
+            return parse(bridge.getBootTimings());
+        } else if (name.equals("slideShown")) {
+            bridge.slideShown(args.getString("url"));
+        } else if (name.equals("setSleepSchedule")) {
+            bridge.setSleepSchedule(args.getInt("start"), args.getInt("end"));
+        } else if (name.equals("getSleepSchedule")) {
+            return parse(bridge.getSleepSchedule());
+        } else if (name.equals("checkForUpdate")) {
+            bridge.checkForUpdate();
+        } else if (name.equals("getVersionCode")) {
+            return bridge.getVersionCode();
+        } else if (name.equals("getVersionName")) {
+            return bridge.getVersionName();
+        } else if (name.equals("getDeviceId")) {
+            return bridge.getDeviceId();
+        } else if (name.equals("setDeviceId")) {
+            bridge.setDeviceId(args.getString("device_id"));
+        } else if (name.equals("resetDevice")) {
+            bridge.resetDevice();
+        } else if (name.equals("getRenderMode")) {
+            return bridge.getRenderMode();
+        } else if (name.equals("setRenderMode")) {
+            bridge.setRenderMode(args.getString("mode"));
+        } else {
+            throw new IllegalArgumentException("Unknown command: " + name);
+        }
+        return null;
+    }
+
+    /**
+     * Commands where only the last value in a batch matters
+     */
+    private static boolean isSetter(String name) {
+        return name.equals("setBrightness") || name.equals("setAutoBrightness")
+            || name.equals("setBrightnessCurve") || name.equals("setSleepSchedule")
+            || name.equals("setPrefetchConfig") || name.equals("setStaticPeers")
+            || name.equals("setOrigins")
+            || name.equals("prefetch");
+    }
+
+    private static boolean isSupersededLater(JSONArray commands, int index, String name) {
+        for (int i = index + 1; i < commands.length(); i++) {
+            JSONObject later = commands.optJSONObject(i);
+            if (later != null && name.equals(later.optString("cmd"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object parse(String json) throws JSONException {
+        return json != null ? new JSONTokener(json).nextValue() : null;
+    }
+
+    private static JSONObject ok(Object result) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("ok", true);
+            json.put("result", result != null ? result : JSONObject.NULL);
+        } catch (JSONException e) {
+            // Keys are constant, cannot fail
+        }
+        return json;
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("ok", false);
+            json.put("error", message);
+        } catch (JSONException e) {
+            // Keys are constant, cannot fail
+        }
+        return json;
+    }
+
+    /**
+     * Hand all results of a batch to the page in one call
+     */
+    private void deliver(int batchId, JSONArray results, final WebView webView) {
+        final String script = "window." + CALLBACK + " && window." + CALLBACK
+            + "(" + batchId + "," + results.toString() + ");";
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webView.evaluateJavascript(script, null);
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to deliver batch results", e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,214 @@
+package com.eo1.slideshow;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Single connectivity state machine for the app:
+ * - Link state driven by CONNECTIVITY_ACTION broadcasts, no polling
+ * - Server reachability probed separately, only while the link is up;
+ *   every configured origin is tried
+ * - Failed probes retried with capped, jittered exponential backoff
+ * - Listener notified on the UI thread when the state changes
+ */
+public class ConnectivityMonitor {
+    private static final String TAG = "ConnectivityMonitor";
+    private static final long PROBE_BASE_DELAY = 5000;
+    private static final long PROBE_MAX_DELAY = 5 * 60 * 1000;
+
+    public enum State {
+        /** No network link */
+        OFFLINE,
+        /** Link is up, server reachability not yet known */
+        CONNECTING,
+        /** Link is up and the server answers */
+        ONLINE,
+        /** Link is up but the server does not answer */
+        SERVER_UNREACHABLE
+    }
+
+    public interface Listener {
+        void onConnectivityChanged(State state);
+    }
+
+    private final Context context;
+    private final OriginSelector origins;
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private final Backoff probeBackoff = new Backoff(PROBE_BASE_DELAY, PROBE_MAX_DELAY);
+    // One per start()..stop() run; results from an earlier run are ignored
+    private ExecutorService prober;
+    private State state = State.OFFLINE;
+    private boolean probing = false;
+    private boolean started = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            onLinkChanged();
+        }
+    };
+
+    private final Runnable probeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            probe();
+        }
+    };
+
+    public ConnectivityMonitor(Context context, OriginSelector origins, Listener listener) {
+        this.context = context;
+        this.origins = origins;
+        this.listener = listener;
+    }
+
+    /**
+     * Start listening for link changes. The current link state is
+     * delivered right away by the sticky broadcast.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        probing = false;
+        prober = Executors.newSingleThreadExecutor();
+        context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (Exception e) {
+            // Ignore if not registered
+        }
+        handler.removeCallbacksAndMessages(null);
+        prober.shutdownNow();
+        prober = null;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isLinkUp() {
+        return state != State.OFFLINE;
+    }
+
+    public boolean isServerReachable() {
+        return state == State.ONLINE;
+    }
+
+    /**
+     * The server answered a real request, no probe needed
+     */
+    public void reportServerReachable() {
+        if (state != State.OFFLINE) {
+            handler.removeCallbacks(probeRunnable);
+            probeBackoff.reset();
+            setState(State.ONLINE);
+        }
+    }
+
+    /**
+     * A request to the server failed: re-check reachability
+     */
+    public void reportServerFailure() {
+        if (state == State.ONLINE) {
+            setState(State.CONNECTING);
+            probe();
+        }
+    }
+
+    private void onLinkChanged() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        boolean linkUp = activeNetwork != null && activeNetwork.isConnected();
+
+        if (!linkUp) {
+            handler.removeCallbacks(probeRunnable);
+            probeBackoff.reset();
+            setState(State.OFFLINE);
+        } else if (state == State.OFFLINE || state == State.SERVER_UNREACHABLE) {
+            // New or changed link: find out whether the server answers now
+            handler.removeCallbacks(probeRunnable);
+            probeBackoff.reset();
+            setState(State.CONNECTING);
+            probe();
+        }
+    }
+
+    /**
+     * Probe the server in the background, at most one probe at a time
+     */
+    private void probe() {
+        if (probing || !started) {
+            return;
+        }
+        probing = true;
+        final ExecutorService executor = prober;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean reachable = isReachable();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (executor != prober) {
+                            return;
+                        }
+                        probing = false;
+                        onProbeResult(reachable);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onProbeResult(boolean reachable) {
+        if (!started || state == State.OFFLINE) {
+            return;
+        }
+        if (reachable) {
+            probeBackoff.reset();
+            setState(State.ONLINE);
+        } else {
+            setState(State.SERVER_UNREACHABLE);
+            long delay = probeBackoff.nextDelay();
+            Log.i(TAG, "Server unreachable, probing again in " + (delay / 1000) + "s");
+            handler.removeCallbacks(probeRunnable);
+            handler.postDelayed(probeRunnable, delay);
+        }
+    }
+
+    /**
+     * Probe all origins; the selector fails over to one that answers
+     */
+    private boolean isReachable() {
+        return origins.probeAll();
+    }
+
+    private void setState(State newState) {
+        if (state == newState) {
+            return;
+        }
+        Log.i(TAG, state + " -> " + newState);
+        Metrics.get().counter("connectivity." + newState.name().toLowerCase(Locale.US)).inc();
+        state = newState;
+        listener.onConnectivityChanged(newState);
+    }
+}
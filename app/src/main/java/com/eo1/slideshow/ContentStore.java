@@ -0,0 +1,320 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed media store:
+ * - Each item stored once as blobs/<sha256>, whatever its URL
+ * - The active manifest maps URLs to hashes and is kept on disk, so
+ *   playback works from local storage across restarts; URLs on a
+ *   configured origin are matched by path, whichever origin is in use
+ * - Blobs no longer referenced by the active manifest are deleted
+ */
+public class ContentStore {
+    private static final String TAG = "ContentStore";
+    private static final String DIR_NAME = "blobs";
+    private static final String MANIFEST_NAME = "manifest.json";
+    private static final int TIMEOUT = 15000;
+    private static final int PEER_TIMEOUT = 3000;
+    private static final int MAX_PEER_ATTEMPTS = 3;
+
+    private final File dir;
+    private final File manifestFile;
+    private Map<String, Manifest.Item> byUrl = new HashMap<String, Manifest.Item>();
+    private URL manifestBase;
+    private boolean loaded = false;
+    private final Metrics.Counter hits = Metrics.get().counter("store.hits");
+    private final Metrics.Counter peerHits = Metrics.get().counter("peer.hits");
+    private final Metrics.Counter peerMisses = Metrics.get().counter("peer.misses");
+    private final Metrics.Counter peerBytes = Metrics.get().counter("peer.bytes_fetched");
+    private volatile PeerDiscovery peers;
+    private volatile OriginSelector origins;
+
+    public ContentStore(Context context) {
+        this.dir = new File(context.getFilesDir(), DIR_NAME);
+        this.manifestFile = new File(context.getFilesDir(), MANIFEST_NAME);
+    }
+
+    /**
+     * @param url URL the manifest is fetched from, for relative item URLs
+     */
+    public synchronized void setManifestUrl(String url) {
+        try {
+            this.manifestBase = new URL(url);
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Bad manifest URL " + url);
+        }
+    }
+
+    /**
+     * Match origin URLs by path, or null to match every URL as is.
+     * Set before the store is used.
+     */
+    public void setOrigins(OriginSelector origins) {
+        this.origins = origins;
+    }
+
+    /**
+     * Serve a WebView request from the store if the active manifest has it
+     * @return response, or null to fall through to the asset cache
+     */
+    public WebResourceResponse intercept(String url) {
+        Manifest.Item item;
+        synchronized (this) {
+            loadIfNeeded();
+            item = byUrl.get(keyOf(url));
+        }
+        if (item == null) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(blobFile(item.sha256));
+            hits.inc();
+            return new WebResourceResponse(mimeTypeOf(item), null, in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Local file for a URL in the active manifest, without network access
+     */
+    public File getFile(String url) {
+        Manifest.Item item;
+        synchronized (this) {
+            loadIfNeeded();
+            item = byUrl.get(keyOf(url));
+        }
+        if (item == null) {
+            return null;
+        }
+        File file = blobFile(item.sha256);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Hashes of all complete blobs on disk
+     */
+    public Set<String> storedHashes() {
+        Set<String> hashes = new HashSet<String>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().length() == 64) {
+                    hashes.add(file.getName());
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Stored blob for a hash, for serving to peers
+     * @return file, or null if the hash is malformed or not stored
+     */
+    public File getBlob(String sha) {
+        if (sha == null || !sha.matches("[0-9a-f]{64}")) {
+            return null;
+        }
+        File file = blobFile(sha);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Peers asked for content before the origin, or null for origin only
+     */
+    public void setPeers(PeerDiscovery peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Download one item, verified against its size and hash before it is
+     * added to the store. LAN peers are tried first; the origin only if
+     * none of them has it.
+     * @param limiter bandwidth cap for the origin, or null for unlimited
+     * @return bytes downloaded
+     */
+    public long download(Manifest.Item item, BandwidthLimiter limiter) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        PeerDiscovery lan = peers;
+        if (lan != null) {
+            List<String> candidates = lan.getPeers();
+            for (int i = 0; i < candidates.size() && i < MAX_PEER_ATTEMPTS; i++) {
+                String url = "http://" + candidates.get(i) + PeerServer.BLOB_PATH + item.sha256;
+                try {
+                    long size = fetch(url, item, null, PEER_TIMEOUT);
+                    peerHits.inc();
+                    peerBytes.add(size);
+                    return size;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Not there or unreachable, try the next one
+                }
+            }
+            peerMisses.inc();
+        }
+        return fetch(item.url, item, limiter, TIMEOUT);
+    }
+
+    private long fetch(String url, Manifest.Item item, BandwidthLimiter limiter, int timeout)
+            throws IOException {
+        HttpClient.Call call = HttpClient.get().openBackground(url, timeout);
+        // Unique per download: a sync being stopped may still be writing one
+        File tmp = null;
+        try {
+            int code = call.execute();
+            if (code != 200) {
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+
+            MessageDigest digest = AssetCache.sha256();
+            long size = 0;
+            tmp = File.createTempFile(item.sha256, ".tmp", dir);
+            InputStream in = call.body();
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (limiter != null) {
+                        limiter.acquire(read);
+                    }
+                    out.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    size += read;
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Download interrupted");
+            } finally {
+                out.close();
+                in.close();
+            }
+
+            String sha = AssetCache.toHex(digest.digest());
+            if (!sha.equals(item.sha256) || (item.size > 0 && size != item.size)) {
+                throw new IOException("Content mismatch for " + url);
+            }
+            if (!tmp.renameTo(blobFile(sha))) {
+                throw new IOException("Cannot commit blob " + sha);
+            }
+            return size;
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            call.close();
+        }
+    }
+
+    /**
+     * Make a downloaded manifest the active one and delete blobs it no
+     * longer references. All its items must already be stored.
+     * @param downloaded manifest file, moved into place
+     * @return number of blobs deleted
+     */
+    public synchronized int commit(File downloaded, Manifest manifest, URL base) throws IOException {
+        if (!downloaded.renameTo(manifestFile)) {
+            throw new IOException("Cannot commit manifest");
+        }
+        manifestBase = base;
+        byUrl = index(manifest);
+        loaded = true;
+        return gc(manifest.referencedHashes());
+    }
+
+    /**
+     * Delete blobs and partial downloads not in the referenced set
+     */
+    private int gc(Set<String> referenced) {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " unreferenced blobs");
+        }
+        return deleted;
+    }
+
+    public synchronized int getItemCount() {
+        loadIfNeeded();
+        return byUrl.size();
+    }
+
+    private void loadIfNeeded() {
+        if (loaded || manifestBase == null) {
+            return;
+        }
+        loaded = true;
+        if (!manifestFile.exists()) {
+            return;
+        }
+        try {
+            Manifest manifest = Manifest.parse(
+                new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"), manifestBase
+            );
+            byUrl = index(manifest);
+            Log.i(TAG, "Loaded manifest with " + byUrl.size() + " items");
+        } catch (IOException e) {
+            Log.w(TAG, "Stored manifest unreadable: " + e.getMessage());
+            manifestFile.delete();
+        }
+    }
+
+    private Map<String, Manifest.Item> index(Manifest manifest) {
+        Map<String, Manifest.Item> map = new HashMap<String, Manifest.Item>();
+        for (Manifest.Item item : manifest.getItems()) {
+            map.put(keyOf(item.url), item);
+        }
+        return map;
+    }
+
+    private String keyOf(String url) {
+        OriginSelector selector = origins;
+        return selector != null ? selector.cacheKey(url) : url;
+    }
+
+    private File blobFile(String sha) {
+        return new File(dir, sha);
+    }
+
+    private static String mimeTypeOf(Manifest.Item item) {
+        if (item.mimeType != null) {
+            return item.mimeType;
+        }
+        String path = item.url;
+        int query = path.indexOf('?');
+        if (query != -1) path = path.substring(0, query);
+        String guessed = URLConnection.guessContentTypeFromName(path);
+        return guessed != null ? guessed : "application/octet-stream";
+    }
+}
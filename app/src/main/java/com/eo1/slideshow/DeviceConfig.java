@@ -10,6 +10,21 @@ import android.content.SharedPreferences;
 public class DeviceConfig {
     private static final String PREFS_NAME = "eo1_config";
     private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_PREFETCH_DEPTH = "prefetch_depth";
+    private static final String KEY_PREFETCH_KBPS = "prefetch_kbps";
+    private static final String KEY_RENDER_MODE = "render_mode";
+    private static final String KEY_AUTO_BRIGHTNESS = "auto_brightness";
+    private static final String KEY_BRIGHTNESS_CURVE = "brightness_curve";
+    private static final String KEY_MANUAL_BRIGHTNESS = "manual_brightness";
+    private static final String KEY_SLEEP_START = "sleep_start";
+    private static final String KEY_SLEEP_END = "sleep_end";
+    private static final String KEY_STATIC_PEERS = "static_peers";
+    private static final String KEY_ORIGINS = "origins";
+
+    public static final String RENDER_MODE_WEB = "web";
+    public static final String RENDER_MODE_NATIVE = "native";
+
+    private static final int DEFAULT_PREFETCH_DEPTH = 3;
 
     private SharedPreferences prefs;
 
@@ -40,6 +55,142 @@ public class DeviceConfig {
         return getDeviceId() != null;
     }
 
+    /**
+     * Number of upcoming slides to prefetch
+     */
+    public int getPrefetchDepth() {
+        return prefs.getInt(KEY_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH);
+    }
+
+    /**
+     * Prefetch bandwidth cap in kilobytes per second, 0 for unlimited
+     */
+    public int getPrefetchKbps() {
+        return prefs.getInt(KEY_PREFETCH_KBPS, 0);
+    }
+
+    /**
+     * Store prefetch settings
+     * @param depth number of upcoming slides to prefetch
+     * @param kbps bandwidth cap in kilobytes per second, 0 for unlimited
+     */
+    public void setPrefetchConfig(int depth, int kbps) {
+        prefs.edit()
+            .putInt(KEY_PREFETCH_DEPTH, depth)
+            .putInt(KEY_PREFETCH_KBPS, kbps)
+            .apply();
+    }
+
+    /**
+     * Get rendering mode
+     * @return RENDER_MODE_WEB (default) or RENDER_MODE_NATIVE
+     */
+    public String getRenderMode() {
+        return prefs.getString(KEY_RENDER_MODE, RENDER_MODE_WEB);
+    }
+
+    /**
+     * Store rendering mode, takes effect when the activity is recreated
+     * @param mode RENDER_MODE_WEB or RENDER_MODE_NATIVE
+     */
+    public void setRenderMode(String mode) {
+        prefs.edit().putString(KEY_RENDER_MODE, mode).apply();
+    }
+
+    public boolean isNativeRenderMode() {
+        return RENDER_MODE_NATIVE.equals(getRenderMode());
+    }
+
+    /**
+     * Whether brightness follows the ambient light sensor (default true)
+     */
+    public boolean isAutoBrightness() {
+        return prefs.getBoolean(KEY_AUTO_BRIGHTNESS, true);
+    }
+
+    public void setAutoBrightness(boolean enabled) {
+        prefs.edit().putBoolean(KEY_AUTO_BRIGHTNESS, enabled).apply();
+    }
+
+    /**
+     * Fixed brightness used while automatic control is off
+     * @return percent, or -1 if none was set
+     */
+    public int getManualBrightness() {
+        return prefs.getInt(KEY_MANUAL_BRIGHTNESS, -1);
+    }
+
+    /**
+     * Switch to a fixed brightness, turning automatic control off
+     */
+    public void setManualBrightness(int percent) {
+        prefs.edit()
+            .putBoolean(KEY_AUTO_BRIGHTNESS, false)
+            .putInt(KEY_MANUAL_BRIGHTNESS, percent)
+            .apply();
+    }
+
+    /**
+     * Get lux-to-brightness curve
+     * @return JSON array of [lux, percent] points, or null for the default
+     */
+    public String getBrightnessCurve() {
+        return prefs.getString(KEY_BRIGHTNESS_CURVE, null);
+    }
+
+    public void setBrightnessCurve(String json) {
+        prefs.edit().putString(KEY_BRIGHTNESS_CURVE, json).apply();
+    }
+
+    /**
+     * Minute of the day the display goes to sleep, -1 if no schedule
+     */
+    public int getSleepStart() {
+        return prefs.getInt(KEY_SLEEP_START, -1);
+    }
+
+    /**
+     * Minute of the day the display wakes up, -1 if no schedule
+     */
+    public int getSleepEnd() {
+        return prefs.getInt(KEY_SLEEP_END, -1);
+    }
+
+    /**
+     * Store sleep schedule
+     * @param startMinute minute of the day to sleep (e.g. 23 * 60), -1 to disable
+     * @param endMinute minute of the day to wake (e.g. 7 * 60)
+     */
+    public void setSleepSchedule(int startMinute, int endMinute) {
+        prefs.edit()
+            .putInt(KEY_SLEEP_START, startMinute)
+            .putInt(KEY_SLEEP_END, endMinute)
+            .apply();
+    }
+
+    /**
+     * LAN peers always asked for content, as a comma-separated host:port list
+     */
+    public String getStaticPeers() {
+        return prefs.getString(KEY_STATIC_PEERS, null);
+    }
+
+    public void setStaticPeers(String list) {
+        prefs.edit().putString(KEY_STATIC_PEERS, list).apply();
+    }
+
+    /**
+     * Server origins in order of preference, as a comma-separated list of
+     * scheme://host:port, or null for the built-in server
+     */
+    public String getOrigins() {
+        return prefs.getString(KEY_ORIGINS, null);
+    }
+
+    public void setOrigins(String list) {
+        prefs.edit().putString(KEY_ORIGINS, list).apply();
+    }
+
     /**
      * Clear stored device ID (for reset)
      */
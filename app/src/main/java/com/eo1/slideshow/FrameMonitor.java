@@ -0,0 +1,100 @@
+package com.eo1.slideshow;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * Samples frame intervals with Choreographer and records them in Metrics.
+ * Runs in short windows so an idle slideshow is not woken every vsync.
+ * An optional Listener gets a summary of each window.
+ */
+public class FrameMonitor implements Choreographer.FrameCallback {
+    private static final long WINDOW = 10 * 1000; // sample for 10 seconds
+    private static final long PERIOD = 60 * 1000; // once a minute
+    private static final long FRAME_NANOS = 16666667L; // 60 Hz
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+    private static final long STALL_NANOS = 100 * 1000000L;
+
+    /**
+     * Called on the UI thread at the end of each sampling window
+     */
+    public interface Listener {
+        void onFrameWindow(int frames, int stalled, long worstMs);
+    }
+
+    private final Handler handler = new Handler();
+    private final Metrics.Histogram frameTimes = Metrics.get().histogram("frame_ms");
+    private final Metrics.Counter frames = Metrics.get().counter("frames");
+    private final Metrics.Counter janky = Metrics.get().counter("frames.janky");
+    private final Metrics.Counter stalls = Metrics.get().counter("frames.stalled");
+    private long lastFrame;
+    private long windowEnd;
+    private boolean running = false;
+    private Listener listener;
+    private int windowFrames;
+    private int windowStalls;
+    private long windowWorst;
+
+    private final Runnable startWindow = new Runnable() {
+        @Override
+        public void run() {
+            lastFrame = 0;
+            windowFrames = 0;
+            windowStalls = 0;
+            windowWorst = 0;
+            // Set from the first frame, on the same clock as frame times
+            windowEnd = 0;
+            Choreographer.getInstance().postFrameCallback(FrameMonitor.this);
+            handler.postDelayed(this, PERIOD);
+        }
+    };
+
+    /**
+     * Start sampling. Must be called on the UI thread.
+     */
+    public void start() {
+        if (!running) {
+            running = true;
+            handler.post(startWindow);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(startWindow);
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (lastFrame != 0) {
+            long interval = frameTimeNanos - lastFrame;
+            frameTimes.record(interval / 1000000L);
+            frames.inc();
+            windowFrames++;
+            windowWorst = Math.max(windowWorst, interval / 1000000L);
+            if (interval > STALL_NANOS) {
+                stalls.inc();
+                windowStalls++;
+            } else if (interval > JANK_NANOS) {
+                janky.inc();
+            }
+        }
+        lastFrame = frameTimeNanos;
+        if (windowEnd == 0) {
+            windowEnd = frameTimeNanos + WINDOW * 1000000L;
+        }
+        if (frameTimeNanos < windowEnd) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else if (listener != null) {
+            listener.onFrameWindow(windowFrames, windowStalls, windowWorst);
+        }
+    }
+}
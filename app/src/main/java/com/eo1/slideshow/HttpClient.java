@@ -0,0 +1,261 @@
+package com.eo1.slideshow;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP layer for all native networking:
+ * - Connections are returned to the platform keep-alive pool instead of
+ *   being disconnected, so TCP and TLS handshakes are paid once per origin
+ * - gzip negotiated explicitly and decoded here, the same on every platform
+ * - Per-request connect and read timeouts
+ * - At most MAX_CONCURRENT foreground requests (what the screen waits
+ *   for) and MAX_BACKGROUND background ones (prefetch, sync, updates) in
+ *   flight; callers beyond that wait. The pools are separate, so slow or
+ *   throttled background downloads cannot starve page loads of sockets.
+ *
+ * Usage: open, set headers on connection(), execute(), read body(), and
+ * always close() in a finally block.
+ */
+public class HttpClient {
+    private static final int MAX_CONCURRENT = 4;
+    private static final int MAX_BACKGROUND = 2;
+    // Idle keep-alive connections kept per route by the platform pool
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    // Unread body left on close that is still drained to keep the connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final String USER_AGENT = "EO1-Slideshow/" + BuildConfig.VERSION_CODE;
+
+    private static HttpClient instance;
+
+    private final Semaphore permits = new Semaphore(MAX_CONCURRENT, true);
+    private final Semaphore backgroundPermits = new Semaphore(MAX_BACKGROUND, true);
+    private final Metrics.Counter requests = Metrics.get().counter("http.requests");
+    private final Metrics.Counter failures = Metrics.get().counter("http.failures");
+    private final Metrics.Histogram waitTimes = Metrics.get().histogram("http.wait_ms");
+    private final Metrics.Histogram responseTimes = Metrics.get().histogram("http.response_ms");
+
+    /**
+     * Set the platform keep-alive pool limits. The pool reads them once,
+     * when the first connection of the process is opened, so this must
+     * run before anything connects (first thing in onCreate).
+     */
+    public static void configure() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    public static synchronized HttpClient get() {
+        if (instance == null) {
+            instance = new HttpClient();
+        }
+        return instance;
+    }
+
+    private HttpClient() {
+    }
+
+    /**
+     * Open a request the screen is waiting for, waiting for a free slot if
+     * MAX_CONCURRENT are in flight
+     * @param timeout connect and read timeout in milliseconds
+     */
+    public Call open(String url, int timeout) throws IOException {
+        return open(url, timeout, permits);
+    }
+
+    /**
+     * Open a request for background work, waiting for a free slot if
+     * MAX_BACKGROUND are in flight
+     * @param timeout connect and read timeout in milliseconds
+     */
+    public Call openBackground(String url, int timeout) throws IOException {
+        return open(url, timeout, backgroundPermits);
+    }
+
+    private Call open(String url, int timeout, Semaphore pool) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            pool.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        }
+        waitTimes.record(SystemClock.elapsedRealtime() - start);
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            requests.inc();
+            return new Call(conn, pool);
+        } catch (IOException e) {
+            pool.release();
+            throw e;
+        } catch (RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    /**
+     * One request/response exchange holding a concurrency slot until closed
+     */
+    public class Call {
+        private final HttpURLConnection conn;
+        private final Semaphore pool;
+        private Body body;
+        private boolean executed = false;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private Call(HttpURLConnection conn, Semaphore pool) {
+            this.conn = conn;
+            this.pool = pool;
+        }
+
+        /**
+         * Underlying connection, for the method and request headers.
+         * Use identity encoding for Range requests.
+         */
+        public HttpURLConnection connection() {
+            return conn;
+        }
+
+        /**
+         * Send the request
+         * @return HTTP status code
+         */
+        public int execute() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            executed = true;
+            try {
+                int code = conn.getResponseCode();
+                responseTimes.record(SystemClock.elapsedRealtime() - start);
+                return code;
+            } catch (IOException e) {
+                failed = true;
+                failures.inc();
+                throw e;
+            }
+        }
+
+        public String header(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public String contentType() {
+            return conn.getContentType();
+        }
+
+        /**
+         * Response body, gunzipped if the server compressed it
+         */
+        public InputStream body() throws IOException {
+            if (body == null) {
+                try {
+                    InputStream in = conn.getInputStream();
+                    body = new Body("gzip".equalsIgnoreCase(conn.getContentEncoding()) ? new GZIPInputStream(in) : in);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+            return body;
+        }
+
+        /**
+         * Return the connection to the keep-alive pool if the response was
+         * read (or nearly) to the end, otherwise drop it. Frees the slot.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!executed || failed || !drain()) {
+                    conn.disconnect();
+                }
+            } finally {
+                pool.release();
+            }
+        }
+
+        private boolean drain() {
+            try {
+                if (body == null) {
+                    InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                    if (in == null) {
+                        return true;
+                    }
+                    body = new Body(in);
+                }
+                body.close();
+                return body.eof;
+            } catch (IOException e) {
+                // Error bodies and broken streams cannot be reused
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Body stream that remembers whether it was read to the end, which
+     * decides if the connection can be reused
+     */
+    private static class Body extends FilterInputStream {
+        boolean eof = false;
+        boolean closed = false;
+
+        Body(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) eof = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) eof = true;
+            return read;
+        }
+
+        /**
+         * Reads a short remainder first, so a caller that stops at the end
+         * of a JSON document still leaves a reusable connection
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                byte[] buffer = new byte[8192];
+                int drained = 0;
+                while (!eof && drained <= MAX_DRAIN_BYTES) {
+                    int read = read(buffer, 0, buffer.length);
+                    if (read > 0) drained += read;
+                }
+            } catch (IOException e) {
+                // Not reusable, eof stays false
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.eo1.slideshow;
+
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Asks the origin for images sized to this panel instead of originals:
+ * - Image URLs on a configured origin get w, h, fit and fmt query
+ *   parameters: scaled to fit inside the panel, never cropped, in the
+ *   preferred format
+ * - Support is also advertised in headers (Accept, Width, Viewport-Width),
+ *   for servers that negotiate on those instead
+ * - An image whose variant the server refuses is fetched as the original;
+ *   after HOST_MISSES refusals in a row the whole host gets originals
+ *   for a while
+ *
+ * Cached under the original URL: the panel size does not change, so one
+ * variant per image is all a frame ever needs.
+ */
+public class ImageVariants {
+    private static final String TAG = "ImageVariants";
+    private static final String FORMAT = "webp";
+    private static final String ACCEPT = "image/webp,image/*;q=0.8";
+    // Hosts and images without variant support are asked again after this long
+    private static final long UNSUPPORTED_RETRY = 60 * 60 * 1000; // 1 hour
+    // Refusals in a row before a host counts as having no variants at all
+    private static final int HOST_MISSES = 5;
+    private static final int MAX_REFUSED_URLS = 256;
+
+    private final OriginSelector origins;
+    private final int width;
+    private final int height;
+    // host -> time variants were given up on; guards all three maps
+    private final Map<String, Long> unsupported = new HashMap<String, Long>();
+    // host -> variant refusals since the last variant it served
+    private final Map<String, Integer> misses = new HashMap<String, Integer>();
+    // image URL -> time its variant was refused, least recent first
+    private final Map<String, Long> refused = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_REFUSED_URLS;
+        }
+    };
+
+    /**
+     * @param metrics real display metrics, e.g. from Display.getRealMetrics()
+     */
+    public ImageVariants(OriginSelector origins, DisplayMetrics metrics) {
+        this.origins = origins;
+        this.width = metrics.widthPixels;
+        this.height = metrics.heightPixels;
+    }
+
+    /**
+     * URL to request for an image
+     * @return variant URL, or the original if variants do not apply
+     */
+    public String rewrite(String url) {
+        if (!origins.isOrigin(url) || !isSupported(url)) {
+            return url;
+        }
+        int fragment = url.indexOf('#');
+        String base = fragment != -1 ? url.substring(0, fragment) : url;
+        if (base.matches(".*[?&]w=.*") || base.matches(".*[?&]h=.*")) {
+            // Page already asked for a specific size
+            return url;
+        }
+        Metrics.get().counter("variant.requests").inc();
+        return base + (base.indexOf('?') == -1 ? '?' : '&')
+            + "w=" + width + "&h=" + height + "&fit=inside&fmt=" + FORMAT;
+    }
+
+    /**
+     * Advertise the display size and accepted formats on a request
+     */
+    public void addHeaders(HttpURLConnection conn) {
+        conn.setRequestProperty("Accept", ACCEPT);
+        conn.setRequestProperty("Width", String.valueOf(width));
+        conn.setRequestProperty("Viewport-Width", String.valueOf(width));
+    }
+
+    /**
+     * The server refused a variant of this URL but has the original; use
+     * the original for this image, and for its host after repeated refusals
+     */
+    public void reportUnsupported(String url) {
+        String host = hostOf(url);
+        if (host == null) {
+            return;
+        }
+        Metrics.get().counter("variant.fallbacks").inc();
+        long now = System.currentTimeMillis();
+        synchronized (unsupported) {
+            refused.put(url, now);
+            Integer count = misses.get(host);
+            int total = count != null ? count + 1 : 1;
+            if (total >= HOST_MISSES) {
+                Log.i(TAG, "No variants from " + host + ", using originals");
+                unsupported.put(host, now);
+                misses.remove(host);
+            } else {
+                misses.put(host, total);
+            }
+        }
+    }
+
+    /**
+     * The server delivered a variant, so its host does support them
+     */
+    public void reportSupported(String url) {
+        String host = hostOf(url);
+        synchronized (unsupported) {
+            misses.remove(host);
+        }
+    }
+
+    private boolean isSupported(String url) {
+        String host = hostOf(url);
+        long now = System.currentTimeMillis();
+        synchronized (unsupported) {
+            return !recent(unsupported, host, now) && !recent(refused, url, now);
+        }
+    }
+
+    /**
+     * Whether a refusal is still in effect; expired ones are removed
+     */
+    private static boolean recent(Map<String, Long> times, String key, long now) {
+        Long time = times.get(key);
+        if (time == null) {
+            return false;
+        }
+        if (now - time > UNSUPPORTED_RETRY) {
+            times.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static String hostOf(String url) {
+        try {
+            URL parsed = new URL(url);
+            return parsed.getHost() + ":" + parsed.getPort();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
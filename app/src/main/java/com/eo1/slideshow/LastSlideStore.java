@@ -0,0 +1,201 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the last few displayed slides on disk, so the next start can
+ * show one immediately instead of a black screen. Displayed images are
+ * copied from the content store or the asset cache, looked up on the
+ * writer thread.
+ */
+public class LastSlideStore {
+    private static final String TAG = "LastSlideStore";
+    private static final String DIR_NAME = "last-slides";
+    private static final int MAX_SLIDES = 3;
+
+    private final File dir;
+    private final ContentStore contentStore;
+    private final AssetCache assetCache;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private String lastSource;
+    // Number of the next slide, continued from the files on disk; the wall
+    // clock can be wrong at boot. Writer thread only.
+    private long nextSequence = -1;
+
+    public LastSlideStore(Context context, ContentStore contentStore, AssetCache assetCache) {
+        this.dir = new File(context.getFilesDir(), DIR_NAME);
+        this.contentStore = contentStore;
+        this.assetCache = assetCache;
+    }
+
+    /**
+     * Most recently stored slide
+     * @return image file, or null if nothing was stored yet
+     */
+    public File getLatest() {
+        File[] files = listSlides();
+        return files.length > 0 ? files[files.length - 1] : null;
+    }
+
+    /**
+     * Copy a displayed image in the background, if it is stored locally.
+     * Any thread.
+     * @param url absolute image URL
+     */
+    public void remember(final String url) {
+        synchronized (this) {
+            if (url.equals(lastSource)) {
+                return;
+            }
+            lastSource = url;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Synced content first, then the cache, as for page requests
+                File source = contentStore.getFile(url);
+                if (source == null) {
+                    source = assetCache.getCachedFile(url);
+                }
+                if (source == null) {
+                    synchronized (LastSlideStore.this) {
+                        // Not stored yet; try again when it is shown next
+                        if (url.equals(lastSource)) {
+                            lastSource = null;
+                        }
+                    }
+                    return;
+                }
+                try {
+                    File tmp = newTempFile();
+                    InputStream in = new FileInputStream(source);
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        byte[] buffer = new byte[16 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        out.close();
+                        in.close();
+                    }
+                    commit(tmp);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to store slide: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Store a snapshot of the screen in the background. The bitmap is
+     * recycled afterwards.
+     */
+    public void remember(final Bitmap snapshot) {
+        synchronized (this) {
+            lastSource = null;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File tmp = newTempFile();
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        snapshot.compress(Bitmap.CompressFormat.JPEG, 85, out);
+                    } finally {
+                        out.close();
+                    }
+                    commit(tmp);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to store snapshot: " + e.getMessage());
+                } finally {
+                    snapshot.recycle();
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    private File newTempFile() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return new File(dir, "slide.tmp");
+    }
+
+    /**
+     * Publish a written slide and drop the oldest beyond MAX_SLIDES
+     */
+    private void commit(File tmp) {
+        File[] files = listSlides();
+        if (nextSequence < 0) {
+            nextSequence = files.length > 0 ? sequenceOf(files[files.length - 1]) + 1 : 0;
+        }
+        File slide = new File(dir, "slide-" + nextSequence++ + ".img");
+        if (!tmp.renameTo(slide)) {
+            tmp.delete();
+            return;
+        }
+        files = listSlides();
+        for (int i = 0; i < files.length - MAX_SLIDES; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Stored slides, oldest first by sequence number
+     */
+    private File[] listSlides() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith("slide-")) {
+                files[count++] = file;
+            }
+        }
+        files = Arrays.copyOf(files, count);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long sa = sequenceOf(a);
+                long sb = sequenceOf(b);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return number in a slide-<n>.img name, or -1 if malformed
+     */
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        int end = name.lastIndexOf('.');
+        try {
+            return Long.parseLong(name.substring("slide-".length(), end != -1 ? end : name.length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
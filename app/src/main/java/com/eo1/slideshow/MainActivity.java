@@ -2,49 +2,193 @@ package com.eo1.slideshow;
 
 import android.app.Activity;
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Point;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
+import android.widget.ImageView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MainActivity extends Activity {
 
-    private WebView webView;
+    private PageSwapper pages;
+    private VideoSlideView videoView;
+    private TiledImageView largeImageView;
     private DeviceConfig deviceConfig;
     private UpdateManager updateManager;
+    private AssetCache assetCache;
+    private ContentStore contentStore;
+    private ManifestSync manifestSync;
+    private PeerServer peerServer;
+    private PeerDiscovery peerDiscovery;
+    private PushChannel pushChannel;
+    private OriginSelector origins;
+    private SlidePrefetcher prefetcher;
+    private NativeSlideshow nativeSlideshow;
+    private ConnectivityMonitor connectivity;
+    private LastSlideStore lastSlides;
+    private BootTimings bootTimings;
+    private ImageView splashView;
+    private Bitmap splashBitmap;
+    private volatile boolean slideReported = false;
+    private FrameMonitor frameMonitor;
+    private MemoryGovernor memoryGovernor;
+    private RenderWatchdog watchdog;
+    private BrightnessController brightness;
+    private SleepScheduler sleepScheduler;
+    private CommandChannel commandChannel;
+    private long loadStartTime;
 
-    // JavaScript interface for hardware control and app management
+    // JavaScript interface for hardware control and app management.
+    // Only the visible page may act; getters answer any page.
     public class EO1Interface {
+        private static final int MAX_DEFERRED = 32;
         private Activity activity;
         private UpdateManager updateManager;
         private DeviceConfig deviceConfig;
+        private SlidePrefetcher prefetcher;
+        private WebView page;
+        // Calls made while the page loads offscreen; UI thread only
+        private final List<Runnable> deferred = new ArrayList<Runnable>();
 
-        public EO1Interface(Activity activity, UpdateManager updateManager, DeviceConfig deviceConfig) {
+        public EO1Interface(Activity activity, WebView page, UpdateManager updateManager,
+                            DeviceConfig deviceConfig, SlidePrefetcher prefetcher) {
             this.activity = activity;
+            this.page = page;
             this.updateManager = updateManager;
             this.deviceConfig = deviceConfig;
+            this.prefetcher = prefetcher;
         }
 
+        /**
+         * Run a batch of commands off the JS thread; results arrive in one
+         * call to window.EO1Callback(batchId, results)
+         * @param commandsJson JSON array of {"cmd": ..., "args": {...}}
+         */
         @JavascriptInterface
-        public void setBrightness(int percent) {
-            final float brightness = Math.max(0.01f, percent / 100f);
+        public void submitCommands(final int batchId, final String commandsJson) {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    CommandChannel channel = ((MainActivity) activity).commandChannel;
+                    if (channel != null) {
+                        channel.submit(batchId, commandsJson, page);
+                    }
+                }
+            });
+        }
+
+        /**
+         * First-paint signal, injected by PageSwapper once the page has loaded
+         */
+        @JavascriptInterface
+        public void pageReady(final int token) {
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    WindowManager.LayoutParams layout = activity.getWindow().getAttributes();
-                    layout.screenBrightness = brightness;
-                    activity.getWindow().setAttributes(layout);
+                    ((MainActivity) activity).pages.onFirstPaint(page, token);
+                }
+            });
+        }
+
+        /**
+         * Fixed brightness; turns automatic brightness off until setAutoBrightness(true)
+         */
+        @JavascriptInterface
+        public void setBrightness(final int percent) {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).brightness.setManual(percent);
+                }
+            });
+        }
+
+        /**
+         * Follow the ambient light sensor (persisted)
+         */
+        @JavascriptInterface
+        public void setAutoBrightness(final boolean enabled) {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).brightness.setAuto(enabled);
+                }
+            });
+        }
+
+        /**
+         * Replace the automatic brightness curve (persisted)
+         * @param curveJson JSON array of [lux, percent] points in increasing lux order
+         * @return false if the curve is malformed
+         */
+        @JavascriptInterface
+        public boolean setBrightnessCurve(final String curveJson) {
+            if (BrightnessController.parseCurve(curveJson) == null) {
+                return false;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).brightness.setCurve(curveJson);
+                }
+            });
+            return true;
+        }
+
+        @JavascriptInterface
+        public String getBrightnessState() {
+            return ((MainActivity) activity).brightness.getStateJson();
+        }
+
+        /**
+         * Daily sleep window, in minutes of the day (e.g. 1380 to 420 for
+         * 23:00 to 07:00); a negative start disables sleep
+         */
+        @JavascriptInterface
+        public void setSleepSchedule(final int startMinute, final int endMinute) {
+            if (startMinute >= 24 * 60 || endMinute < 0 || endMinute >= 24 * 60) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).sleepScheduler.setSchedule(
+                        startMinute < 0 ? -1 : startMinute, endMinute
+                    );
                 }
             });
         }
 
+        @JavascriptInterface
+        public String getSleepSchedule() {
+            return ((MainActivity) activity).sleepScheduler.getScheduleJson();
+        }
+
         @JavascriptInterface
         public void checkForUpdate() {
             if (updateManager != null) {
@@ -52,6 +196,306 @@ public class MainActivity extends Activity {
             }
         }
 
+        /**
+         * Prefetch upcoming slides in the background
+         * @param urlsJson JSON array of slide URLs, nearest first
+         */
+        @JavascriptInterface
+        public void prefetch(String urlsJson) {
+            if (prefetcher == null || urlsJson == null) {
+                return;
+            }
+            try {
+                JSONArray array = new JSONArray(urlsJson);
+                List<String> urls = new ArrayList<String>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    urls.add(resolve(array.getString(i)));
+                }
+                prefetcher.prefetch(urls);
+            } catch (Exception e) {
+                // Ignore malformed lists from the page
+            }
+        }
+
+        /**
+         * Play a video slide natively over the page, decoded in hardware.
+         * State changes arrive in window.EO1VideoState(url, state) with
+         * state one of preparing, playing, ended, error, stopped.
+         * @param loop repeat seamlessly until stopVideo or the next playVideo
+         */
+        @JavascriptInterface
+        public void playVideo(String url, final boolean loop) {
+            final String resolved = resolveOrNull(url);
+            if (resolved == null) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).videoView.play(resolved, loop);
+                }
+            });
+        }
+
+        /**
+         * Prepare the next video slide so playVideo starts it without buffering
+         */
+        @JavascriptInterface
+        public void preloadVideo(String url) {
+            final String resolved = resolveOrNull(url);
+            if (resolved == null) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).videoView.preload(resolved);
+                }
+            });
+        }
+
+        @JavascriptInterface
+        public void stopVideo() {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).videoView.stop();
+                }
+            });
+        }
+
+        /**
+         * Show a very large image (e.g. a panorama) natively over the page,
+         * slowly panning and zooming across it for the given time. Only the
+         * visible tiles are decoded, so memory use does not depend on the
+         * image size. State changes arrive in window.EO1LargeImageState(url,
+         * state) with state one of loading, showing, ended, error, stopped.
+         */
+        @JavascriptInterface
+        public void showLargeImage(String url, final long durationMs) {
+            final String resolved = resolveOrNull(url);
+            if (resolved == null) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).largeImageView.show(resolved, durationMs);
+                }
+            });
+        }
+
+        @JavascriptInterface
+        public void stopLargeImage() {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).largeImageView.stop();
+                }
+            });
+        }
+
+        /**
+         * Resolve a page-relative URL against the server
+         */
+        private String resolve(String url) throws MalformedURLException {
+            return new URL(new URL(((MainActivity) activity).origins.getOrigin() + "/"), url).toString();
+        }
+
+        private String resolveOrNull(String url) {
+            try {
+                return url != null ? resolve(url) : null;
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        @JavascriptInterface
+        public void setPrefetchConfig(final int depth, final int maxKbps) {
+            if (deviceConfig == null || depth < 0 || maxKbps < 0) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    deviceConfig.setPrefetchConfig(depth, maxKbps);
+                    if (prefetcher != null) {
+                        prefetcher.configure(depth, maxKbps);
+                    }
+                }
+            });
+        }
+
+        @JavascriptInterface
+        public String getPrefetchStats() {
+            return prefetcher != null ? prefetcher.getStatsJson() : null;
+        }
+
+        /**
+         * State of the local media store: items, last sync, fetched,
+         * deleted and failed blob counts, last error
+         */
+        @JavascriptInterface
+        public String getSyncStatus() {
+            return ((MainActivity) activity).manifestSync.getStatusJson();
+        }
+
+        /**
+         * Origin the app currently talks to, e.g. "http://10.0.0.5:3000"
+         */
+        @JavascriptInterface
+        public String getOrigin() {
+            return ((MainActivity) activity).origins.getOrigin();
+        }
+
+        /**
+         * Configured origins with health and smoothed RTT, and the current one
+         */
+        @JavascriptInterface
+        public String getOriginStatus() {
+            return ((MainActivity) activity).origins.getStatusJson();
+        }
+
+        /**
+         * Memory pressure level (normal, moderate, low, critical) and heap use
+         */
+        @JavascriptInterface
+        public String getMemoryState() {
+            return ((MainActivity) activity).memoryGovernor.getStateJson();
+        }
+
+        /**
+         * Set server origins in order of preference (persisted)
+         * @param list comma-separated scheme://host:port, empty for the built-in server
+         */
+        @JavascriptInterface
+        public void setOrigins(final String list) {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    if (deviceConfig != null) {
+                        deviceConfig.setOrigins(list);
+                    }
+                    ((MainActivity) activity).origins.setOrigins(list);
+                }
+            });
+        }
+
+        /**
+         * Set LAN peers asked for content before the origin, in addition
+         * to discovered ones
+         * @param list comma-separated host:port, empty for none
+         */
+        @JavascriptInterface
+        public void setStaticPeers(final String list) {
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    if (deviceConfig != null) {
+                        deviceConfig.setStaticPeers(list);
+                    }
+                    ((MainActivity) activity).peerDiscovery.setStaticPeers(list);
+                }
+            });
+        }
+
+        /**
+         * Known LAN peers as a JSON array of host:port
+         */
+        @JavascriptInterface
+        public String getPeers() {
+            return new JSONArray(((MainActivity) activity).peerDiscovery.getPeers()).toString();
+        }
+
+        /**
+         * Page reports the slide it is showing, kept for an instant first
+         * frame on the next start
+         */
+        @JavascriptInterface
+        public void slideShown(String url) {
+            // Same URL the page's request for it was intercepted with
+            final String resolved = resolveOrNull(url);
+            if (resolved == null) {
+                return;
+            }
+            whenShown(new Runnable() {
+                @Override
+                public void run() {
+                    ((MainActivity) activity).onSlideShown(resolved);
+                }
+            });
+        }
+
+        /**
+         * Liveness signal for the render watchdog. Once a page has called
+         * it, it must keep calling at least every 60 seconds or the page is
+         * reloaded. Call it from a requestAnimationFrame callback, so a
+         * stalled renderer stops the heartbeat too.
+         */
+        @JavascriptInterface
+        public void heartbeat() {
+            // Only the visible page is watched; a page loading offscreen
+            // is covered by the load timeout
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (isShown()) {
+                        ((MainActivity) activity).watchdog.heartbeat();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stalls the render watchdog recovered from, oldest first, with
+         * reason, action taken, page, slide and recovery time
+         */
+        @JavascriptInterface
+        public String getWatchdogIncidents() {
+            return ((MainActivity) activity).watchdog.getHistoryJson();
+        }
+
+        @JavascriptInterface
+        public String getBootTimings() {
+            return ((MainActivity) activity).bootTimings.getHistoryJson();
+        }
+
+        /**
+         * Current metrics: counters, histograms and heap gauges
+         */
+        @JavascriptInterface
+        public String getMetrics() {
+            return Metrics.get().snapshotJson();
+        }
+
+        /**
+         * Persisted metric snapshots, oldest first, across restarts
+         */
+        @JavascriptInterface
+        public String getMetricsHistory() {
+            return Metrics.get().historyJson();
+        }
+
+        @JavascriptInterface
+        public String getRenderMode() {
+            return deviceConfig != null ? deviceConfig.getRenderMode() : null;
+        }
+
+        /**
+         * Switch between the WebView page ("web") and the native renderer ("native")
+         */
+        @JavascriptInterface
+        public void setRenderMode(final String mode) {
+            if (DeviceConfig.RENDER_MODE_WEB.equals(mode) || DeviceConfig.RENDER_MODE_NATIVE.equals(mode)) {
+                whenShown(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((MainActivity) activity).switchRenderMode(mode);
+                    }
+                });
+            }
+        }
+
         @JavascriptInterface
         public int getVersionCode() {
             return BuildConfig.VERSION_CODE;
@@ -70,11 +514,11 @@ public class MainActivity extends Activity {
         @JavascriptInterface
         public void setDeviceId(final String deviceId) {
             if (deviceConfig != null && deviceId != null && !deviceId.isEmpty()) {
-                deviceConfig.setDeviceId(deviceId);
-                // Reload with new device ID
-                activity.runOnUiThread(new Runnable() {
+                whenShown(new Runnable() {
                     @Override
                     public void run() {
+                        deviceConfig.setDeviceId(deviceId);
+                        // Reload with new device ID
                         ((MainActivity) activity).reloadWithDeviceId();
                     }
                 });
@@ -84,32 +528,154 @@ public class MainActivity extends Activity {
         @JavascriptInterface
         public void resetDevice() {
             if (deviceConfig != null) {
-                deviceConfig.clear();
-                activity.runOnUiThread(new Runnable() {
+                whenShown(new Runnable() {
                     @Override
                     public void run() {
+                        deviceConfig.clear();
                         ((MainActivity) activity).reloadWithDeviceId();
                     }
                 });
             }
         }
+
+        /**
+         * Whether calls act for the visible page: this bridge's page is in
+         * front, or the bridge is not tied to a page (command channel).
+         * UI thread only.
+         */
+        private boolean isShown() {
+            PageSwapper pages = ((MainActivity) activity).pages;
+            return page == null || pages == null || page == pages.getFront();
+        }
+
+        /**
+         * Run an action on the UI thread once this page is the visible one.
+         * A page loading offscreen runs its JS before the swap, and must not
+         * put overlays or settings over the page still showing; its calls
+         * wait for onShown() and are dropped if it never gets there.
+         */
+        private void whenShown(final Runnable action) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (isShown()) {
+                        action.run();
+                    } else {
+                        if (deferred.size() == MAX_DEFERRED) {
+                            deferred.remove(0);
+                        }
+                        deferred.add(action);
+                    }
+                }
+            });
+        }
+
+        /**
+         * The page was swapped in: run what it asked for while loading
+         */
+        void onShown() {
+            List<Runnable> actions = new ArrayList<Runnable>(deferred);
+            deferred.clear();
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+
+        /**
+         * A new load starts in this page; forget the last one's calls
+         */
+        void clearDeferred() {
+            deferred.clear();
+        }
     }
 
     private Handler handler;
-    private static final String SERVER_BASE = "http://93.127.216.80:3000";
-    private static final int RETRY_DELAY = 5000;
-    private static final int WIFI_CHECK_DELAY = 2000;
+    static final String EXTRA_FROM_BOOT = "from_boot";
+    private static final long SPLASH_HANDOFF_DELAY = 1000;
+    private static final long SPLASH_FADE_DURATION = 800;
+    private static final long SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+    private static final long RETRY_BASE_DELAY = 5000;
+    private static final long RETRY_MAX_DELAY = 5 * 60 * 1000;
+    private static final long WAKE_LOCK_TIMEOUT = 10 * 1000;
+    private static final long WARMUP_LOCK_TIMEOUT = 3 * 60 * 1000;
     private boolean pageLoaded = false;
+    private boolean loadInFlight = false;
+    // A failed load is waiting out retryBackoff
+    private boolean retryPending = false;
+    // Server was out of reach (no link or no answer) since it last answered
+    private boolean serverWasDown = true;
+    private boolean linkUp = false;
+    private final Backoff retryBackoff = new Backoff(RETRY_BASE_DELAY, RETRY_MAX_DELAY);
+
+    // Screen snapshot for the next start, when the page does not report slides
+    private final Runnable snapshot = new Runnable() {
+        @Override
+        public void run() {
+            if (!slideReported && pageLoaded) {
+                takeSnapshot();
+                handler.postDelayed(this, SNAPSHOT_INTERVAL);
+            }
+        }
+    };
+
+    // The only pending reload; re-posting replaces it
+    private final Runnable retryLoad = new Runnable() {
+        @Override
+        public void run() {
+            retryPending = false;
+            requestLoad();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        HttpClient.configure();
 
         handler = new Handler();
+        Metrics.get().start(this);
 
         // Initialize device config and update manager
         deviceConfig = new DeviceConfig(this);
-        updateManager = new UpdateManager(this);
+        origins = new OriginSelector(deviceConfig.getOrigins(), new OriginSelector.Listener() {
+            @Override
+            public void onOriginChanged(String origin) {
+                MainActivity.this.onOriginChanged();
+            }
+        });
+        updateManager = new UpdateManager(this, origins);
+        assetCache = new AssetCache(this);
+        assetCache.setOrigins(origins);
+        // Images sized for the panel instead of camera originals
+        DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getRealMetrics(metrics);
+        assetCache.setVariants(new ImageVariants(origins, metrics));
+        bootTimings = new BootTimings(this, getIntent().getBooleanExtra(EXTRA_FROM_BOOT, false));
+        prefetcher = new SlidePrefetcher(
+            assetCache, deviceConfig.getPrefetchDepth(), deviceConfig.getPrefetchKbps()
+        );
+        contentStore = new ContentStore(this);
+        contentStore.setOrigins(origins);
+        lastSlides = new LastSlideStore(this, contentStore, assetCache);
+        manifestSync = new ManifestSync(this, contentStore, prefetcher.getLimiter());
+        peerServer = new PeerServer(contentStore, PeerServer.DEFAULT_PORT);
+        peerDiscovery = new PeerDiscovery(this, PeerServer.DEFAULT_PORT, deviceConfig.getStaticPeers());
+        contentStore.setPeers(peerDiscovery);
+        peerServer.start();
+        peerDiscovery.start();
+        pushChannel = new PushChannel(new PushChannel.Listener() {
+            @Override
+            public void onPushConnected(boolean connected) {
+                updateManager.setPushConnected(connected);
+                manifestSync.setPushConnected(connected);
+            }
+
+            @Override
+            public void onPushEvent(String event, String data) {
+                onServerEvent(event, data);
+            }
+        });
+        updateManifestUrl();
 
         // Fullscreen
         requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -118,13 +684,222 @@ public class MainActivity extends Activity {
             WindowManager.LayoutParams.FLAG_FULLSCREEN
         );
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        brightness = new BrightnessController(this, deviceConfig);
 
         setContentView(R.layout.activity_main);
 
-        webView = (WebView) findViewById(R.id.webview);
+        WebView frontView = (WebView) findViewById(R.id.webview);
+        WebView backView = (WebView) findViewById(R.id.webview_back);
 
-        // Settings for full resolution
-        WebSettings settings = webView.getSettings();
+        // Show the last slide right away while network and page come up
+        splashView = (ImageView) findViewById(R.id.splash);
+        showLastSlide();
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                bootTimings.markFirstPixel();
+                return true;
+            }
+        });
+
+        // Register JavaScript interface on both pages, plus the batched
+        // channel, which is not tied to a page: its batches were already
+        // held back by the sending page's bridge, pushed ones come from the server
+        setupWebView(frontView);
+        setupWebView(backView);
+        commandChannel = new CommandChannel(
+            new EO1Interface(this, null, updateManager, deviceConfig, prefetcher));
+
+        // Pages load offscreen and replace the visible one once painted
+        pages = new PageSwapper((ViewGroup) findViewById(R.id.web_container), frontView, backView,
+            new PageSwapper.Listener() {
+                @Override
+                public WebResourceResponse interceptRequest(String url) {
+                    // Synced content first, then the cache
+                    WebResourceResponse stored = contentStore.intercept(url);
+                    return stored != null ? stored : assetCache.intercept(url);
+                }
+
+                @Override
+                public void onPageShown(String url) {
+                    loadInFlight = false;
+                    watchdog.onLoadEnded(true);
+                    if (origins.isOrigin(url)) {
+                        pageLoaded = true;
+                        Metrics.get().histogram("page_load_ms").record(
+                            SystemClock.elapsedRealtime() - loadStartTime
+                        );
+                        retryBackoff.reset();
+                        connectivity.reportServerReachable();
+                        // Give the page's first slide a moment to paint
+                        handler.postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                hideSplash();
+                            }
+                        }, SPLASH_HANDOFF_DELAY);
+                        handler.removeCallbacks(snapshot);
+                        handler.postDelayed(snapshot, SNAPSHOT_INTERVAL);
+                    }
+                    hideSystemUI();
+                    // Overlays belong to the page that started them
+                    videoView.stop();
+                    largeImageView.stop();
+                    // Calls the page made while it loaded offscreen
+                    ((EO1Interface) pages.getFront().getTag()).onShown();
+                }
+
+                @Override
+                public void onLoadFailed(int errorCode, String description) {
+                    loadInFlight = false;
+                    watchdog.onLoadEnded(false);
+                    pageLoaded = false;
+                    Metrics.get().counter("page.errors").inc();
+                    origins.reportFailure(origins.getOrigin());
+                    connectivity.reportServerFailure();
+                    scheduleRetry();
+                }
+            });
+
+        videoView = (VideoSlideView) findViewById(R.id.video);
+        videoView.setListener(new VideoSlideView.Listener() {
+            @Override
+            public void onVideoState(String url, String state) {
+                pages.getFront().evaluateJavascript("window.EO1VideoState && window.EO1VideoState("
+                    + JSONObject.quote(url) + "," + JSONObject.quote(state) + ");", null);
+            }
+        });
+
+        largeImageView = (TiledImageView) findViewById(R.id.large_image);
+        largeImageView.setFileSource(new TiledImageView.FileSource() {
+            @Override
+            public File getFile(String url) throws IOException {
+                File stored = contentStore.getFile(url);
+                // Full resolution: a display-sized variant would defeat the tiling
+                return stored != null ? stored : assetCache.getOriginalFile(url);
+            }
+        });
+        largeImageView.setListener(new TiledImageView.Listener() {
+            @Override
+            public void onLargeImageState(String url, String state) {
+                pages.getFront().evaluateJavascript("window.EO1LargeImageState && window.EO1LargeImageState("
+                    + JSONObject.quote(url) + "," + JSONObject.quote(state) + ");", null);
+            }
+        });
+
+        // Native render mode: slides are drawn directly, the WebView stays unloaded
+        if (deviceConfig.isNativeRenderMode()) {
+            NativeSlideshowView slideshowView = (NativeSlideshowView) findViewById(R.id.slideshow);
+            slideshowView.setVisibility(View.VISIBLE);
+            findViewById(R.id.web_container).setVisibility(View.GONE);
+
+            Point size = new Point();
+            getWindowManager().getDefaultDisplay().getRealSize(size);
+            nativeSlideshow = new NativeSlideshow(slideshowView, assetCache, contentStore, size.x, size.y,
+                new NativeSlideshow.Listener() {
+                    @Override
+                    public void onWebModeRequested() {
+                        switchRenderMode(DeviceConfig.RENDER_MODE_WEB);
+                    }
+
+                    @Override
+                    public void onSlideShown(String url) {
+                        hideSplash();
+                        MainActivity.this.onSlideShown(url);
+                    }
+                });
+        }
+
+        frameMonitor = new FrameMonitor();
+        frameMonitor.start();
+
+        // Frozen pages are reloaded, then rebuilt, then the app restarted
+        watchdog = new RenderWatchdog(this, new RenderWatchdog.Listener() {
+            @Override
+            public void onRecover(int action) {
+                recoverRendering(action);
+            }
+        });
+        frameMonitor.setListener(watchdog);
+        watchdog.start();
+
+        memoryGovernor = new MemoryGovernor(new MemoryGovernor.Listener() {
+            @Override
+            public void onMemoryLevelChanged(int level) {
+                applyMemoryLevel(level);
+            }
+        });
+
+        hideSystemUI();
+
+        // Load once the server is reachable, driven by connectivity changes
+        connectivity = new ConnectivityMonitor(this, origins, new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor.State state) {
+                if (state != ConnectivityMonitor.State.OFFLINE && !linkUp) {
+                    // LAN is back: peers can hear us again
+                    linkUp = true;
+                    peerDiscovery.onNetworkAvailable();
+                } else if (state == ConnectivityMonitor.State.OFFLINE) {
+                    linkUp = false;
+                }
+                if (state == ConnectivityMonitor.State.ONLINE) {
+                    // A probe after a failed load also ends here while the
+                    // server is up; then the scheduled retry keeps its backoff
+                    if (serverWasDown || !retryPending) {
+                        requestLoad();
+                    }
+                    serverWasDown = false;
+                    if (!sleepScheduler.isSleeping()) {
+                        manifestSync.start();
+                        pushChannel.start();
+                        origins.start();
+                    }
+                } else if (state == ConnectivityMonitor.State.OFFLINE) {
+                    // Nothing to retry until the link is back
+                    cancelRetry();
+                    serverWasDown = true;
+                    manifestSync.stop();
+                    pushChannel.stop();
+                    origins.stop();
+                } else if (state == ConnectivityMonitor.State.SERVER_UNREACHABLE) {
+                    serverWasDown = true;
+                }
+            }
+        });
+        // Sleep schedule first, so a start inside the window does not load
+        sleepScheduler = new SleepScheduler(this, deviceConfig, new SleepScheduler.Listener() {
+            @Override
+            public void onSleep() {
+                enterSleep();
+            }
+
+            @Override
+            public void onPrepareWake() {
+                prepareWake();
+            }
+
+            @Override
+            public void onWake() {
+                exitSleep();
+            }
+        });
+        sleepScheduler.start();
+        connectivity.start();
+
+        // Start periodic update checks
+        if (!sleepScheduler.isSleeping()) {
+            updateManager.startPeriodicChecks();
+        }
+    }
+
+    /**
+     * Settings for full resolution and the JavaScript bridge, for each page
+     */
+    private void setupWebView(WebView view) {
+        WebSettings settings = view.getSettings();
         settings.setJavaScriptEnabled(true);
         settings.setDomStorageEnabled(true);
         settings.setLoadWithOverviewMode(false);
@@ -133,43 +908,100 @@ public class MainActivity extends Activity {
         settings.setDisplayZoomControls(false);
         settings.setSupportZoom(false);
         settings.setDefaultZoom(WebSettings.ZoomDensity.FAR);
+        // Images are served from AssetCache; keep the page itself fresh
         settings.setCacheMode(WebSettings.LOAD_NO_CACHE);
 
-        webView.setInitialScale(0);
-        webView.setBackgroundColor(0xFF000000);
+        view.setInitialScale(0);
+        view.setBackgroundColor(0xFF000000);
 
-        // Register JavaScript interface
-        webView.addJavascriptInterface(
-            new EO1Interface(this, updateManager, deviceConfig),
-            "EO1"
-        );
+        EO1Interface bridge = new EO1Interface(this, view, updateManager, deviceConfig, prefetcher);
+        view.addJavascriptInterface(bridge, "EO1");
+        view.setTag(bridge);
+    }
 
-        // WebViewClient with error handling and auto-retry
-        webView.setWebViewClient(new WebViewClient() {
-            @Override
-            public void onPageFinished(WebView view, String url) {
-                super.onPageFinished(view, url);
-                if (url.contains("93.127.216.80")) {
-                    pageLoaded = true;
-                }
-                hideSystemUI();
-            }
+    /**
+     * Sleep window: suspend rendering and background work, release memory
+     * and let the screen go dark
+     */
+    @SuppressWarnings("deprecation")
+    private void enterSleep() {
+        cancelRetry();
+        handler.removeCallbacks(snapshot);
+        prefetcher.cancelAll();
+        manifestSync.stop();
+        pushChannel.stop();
+        origins.stop();
+        peerDiscovery.stop();
+        peerServer.stop();
+        videoView.stop();
+        largeImageView.stop();
+        updateManager.stopPeriodicChecks();
+        frameMonitor.stop();
+        watchdog.stop();
 
-            @Override
-            public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
-                super.onReceivedError(view, errorCode, description, failingUrl);
-                pageLoaded = false;
-                scheduleRetry();
-            }
-        });
+        if (nativeSlideshow != null) {
+            nativeSlideshow.stop();
+            nativeSlideshow.getBitmapPool().clear();
+            pageLoaded = false;
+        } else {
+            pages.pause();
+            pages.freeMemory();
+        }
 
-        hideSystemUI();
+        brightness.sleep();
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+    }
 
-        // Wait for network then load
-        waitForNetworkAndLoad();
+    /**
+     * Shortly before wake: resume rendering with the screen still dark, so
+     * the next slide is ready when it turns on
+     */
+    private void prepareWake() {
+        acquireWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WARMUP_LOCK_TIMEOUT);
+        if (nativeSlideshow == null) {
+            pages.resume();
+        }
+        prefetcher.warm();
+        peerServer.start();
+        peerDiscovery.start();
+        if (connectivity.isServerReachable()) {
+            manifestSync.start();
+            pushChannel.start();
+            origins.start();
+        }
+        frameMonitor.start();
+        watchdog.start();
+        requestLoad();
+    }
 
-        // Start periodic update checks
+    /**
+     * End of the sleep window: screen back on at the previous brightness
+     */
+    @SuppressWarnings("deprecation")
+    private void exitSleep() {
+        acquireWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP,
+            WAKE_LOCK_TIMEOUT);
+        getWindow().addFlags(
+            WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
+            | WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON
+        );
+        brightness.wake();
         updateManager.startPeriodicChecks();
+        if (pageLoaded) {
+            handler.removeCallbacks(snapshot);
+            handler.postDelayed(snapshot, SNAPSHOT_INTERVAL);
+        }
+        hideSystemUI();
+    }
+
+    /**
+     * Hold a timed wake lock; released automatically after the timeout
+     */
+    private void acquireWakeLock(int levelAndFlags, long timeout) {
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock lock = pm.newWakeLock(levelAndFlags, "EO1:sleep");
+        lock.setReferenceCounted(false);
+        lock.acquire(timeout);
     }
 
     /**
@@ -178,10 +1010,10 @@ public class MainActivity extends Activity {
     private String getTargetUrl() {
         String deviceId = deviceConfig.getDeviceId();
         if (deviceId != null && !deviceId.isEmpty()) {
-            return SERVER_BASE + "/d/" + deviceId;
+            return origins.getOrigin() + "/d/" + deviceId;
         } else {
             // No device configured, show setup page
-            return SERVER_BASE + "/d/setup";
+            return origins.getOrigin() + "/d/setup";
         }
     }
 
@@ -189,43 +1021,216 @@ public class MainActivity extends Activity {
      * Reload the WebView with the current device ID
      */
     void reloadWithDeviceId() {
-        pageLoaded = false;
-        webView.loadUrl(getTargetUrl());
+        updateManifestUrl();
+        manifestSync.syncNow();
+        loadPage();
     }
 
-    private boolean isNetworkAvailable() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        return activeNetwork != null && activeNetwork.isConnected();
+    /**
+     * Manifest of the current device's playlist, next to its page
+     */
+    private void updateManifestUrl() {
+        String url = getTargetUrl() + "?format=manifest";
+        contentStore.setManifestUrl(url);
+        manifestSync.setManifestUrl(url);
+        pushChannel.setUrl(getTargetUrl() + "/events");
     }
 
-    private void waitForNetworkAndLoad() {
-        if (isNetworkAvailable()) {
-            loadPage();
-        } else {
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    waitForNetworkAndLoad();
+    /**
+     * Traffic moved to another origin: point background work at it and
+     * reload the content from there
+     */
+    private void onOriginChanged() {
+        updateManifestUrl();
+        // A scheduled retry goes to the new origin anyway
+        if (!retryPending && (pageLoaded || loadInFlight)) {
+            pageLoaded = false;
+            loadInFlight = false;
+            requestLoad();
+        }
+    }
+
+    /**
+     * Event pushed by the server:
+     * - update: check for a new APK within a few minutes
+     * - reload: sync the playlist and reload the page
+     * - brightness: {"percent": 40} or {"auto": true}
+     * - config: batch of bridge commands, as sent to EO1.submitCommands()
+     */
+    private void onServerEvent(String event, String data) {
+        if (event.equals("update")) {
+            updateManager.checkSoon();
+        } else if (event.equals("reload")) {
+            reloadWithDeviceId();
+        } else if (event.equals("brightness")) {
+            try {
+                JSONObject json = new JSONObject(data);
+                if (json.has("percent")) {
+                    brightness.setManual(json.getInt("percent"));
+                } else if (json.has("auto")) {
+                    brightness.setAuto(json.getBoolean("auto"));
                 }
-            }, WIFI_CHECK_DELAY);
+            } catch (JSONException e) {
+                // Malformed event, ignored
+            }
+        } else if (event.equals("config")) {
+            commandChannel.submitRemote(data);
         }
     }
 
-    private void loadPage() {
-        pageLoaded = false;
-        webView.loadUrl(getTargetUrl());
+    /**
+     * Remember a displayed slide for the next start. Called from the
+     * bridge thread or the UI thread.
+     */
+    void onSlideShown(String url) {
+        slideReported = true;
+        watchdog.setSlide(url);
+        lastSlides.remember(url);
     }
 
-    private void scheduleRetry() {
-        handler.postDelayed(new Runnable() {
+    /**
+     * Decode the last stored slide at display size into the splash view
+     */
+    private void showLastSlide() {
+        File file = lastSlides.getLatest();
+        if (file == null) {
+            return;
+        }
+        Point size = new Point();
+        getWindowManager().getDefaultDisplay().getRealSize(size);
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            file.delete();
+            return;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = SlideDecoder.sampleSizeFor(opts.outWidth, opts.outHeight, size.x, size.y);
+        splashBitmap = BitmapFactory.decodeFile(file.getPath(), opts);
+        if (splashBitmap != null) {
+            splashView.setImageBitmap(splashBitmap);
+            splashView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Fade out the start-up slide once the live slideshow is showing
+     */
+    private void hideSplash() {
+        bootTimings.markContent();
+        if (splashView.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        splashView.animate().alpha(0f).setDuration(SPLASH_FADE_DURATION).withEndAction(new Runnable() {
             @Override
             public void run() {
-                if (!pageLoaded) {
-                    waitForNetworkAndLoad();
+                splashView.setVisibility(View.GONE);
+                splashView.setImageDrawable(null);
+                if (splashBitmap != null) {
+                    splashBitmap.recycle();
+                    splashBitmap = null;
                 }
             }
-        }, RETRY_DELAY);
+        });
+    }
+
+    /**
+     * Store what the WebView shows, for pages that do not call slideShown
+     */
+    private void takeSnapshot() {
+        WebView webView = pages.getFront();
+        int width = webView.getWidth();
+        int height = webView.getHeight();
+        if (width <= 0 || height <= 0 || webView.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        try {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            webView.draw(new Canvas(bitmap));
+            lastSlides.remember(bitmap);
+        } catch (OutOfMemoryError e) {
+            // Skip this snapshot
+        }
+    }
+
+    /**
+     * Store a new render mode and rebuild the activity with it
+     */
+    void switchRenderMode(String mode) {
+        if (!mode.equals(deviceConfig.getRenderMode())) {
+            deviceConfig.setRenderMode(mode);
+            recreate();
+        }
+    }
+
+    /**
+     * Load the page if it is not loaded yet and the server is reachable.
+     * Otherwise the connectivity listener calls back once it is, and a
+     * scheduled retry stays armed.
+     */
+    private void requestLoad() {
+        if (pageLoaded || loadInFlight || sleepScheduler.isSleeping()) {
+            return;
+        }
+        if (connectivity.isServerReachable()) {
+            cancelRetry();
+            loadPage();
+        }
+    }
+
+    private void loadPage() {
+        if (nativeSlideshow != null) {
+            // Same device endpoint, JSON playlist instead of the page
+            pageLoaded = true;
+            nativeSlideshow.start(getTargetUrl() + "?format=json");
+            return;
+        }
+        cancelRetry();
+        pageLoaded = false;
+        loadInFlight = true;
+        loadStartTime = SystemClock.elapsedRealtime();
+        Metrics.get().counter("page.loads").inc();
+        String url = getTargetUrl();
+        watchdog.onLoadStarted(url);
+        ((EO1Interface) pages.getBack().getTag()).clearDeferred();
+        pages.load(url);
+    }
+
+    /**
+     * Recovery step chosen by the render watchdog
+     */
+    private void recoverRendering(int action) {
+        if (action == RenderWatchdog.ACTION_RESTART_ACTIVITY) {
+            recreate();
+            return;
+        }
+        if (action == RenderWatchdog.ACTION_RECREATE_WEBVIEW && nativeSlideshow == null) {
+            WebView visible = new WebView(this);
+            WebView hidden = new WebView(this);
+            setupWebView(visible);
+            setupWebView(hidden);
+            pages.replaceViews(visible, hidden);
+        }
+        pageLoaded = false;
+        loadInFlight = false;
+        loadPage();
+    }
+
+    /**
+     * Retry a failed load after a jittered, growing delay
+     */
+    private void scheduleRetry() {
+        Metrics.get().counter("page.retries").inc();
+        handler.removeCallbacks(retryLoad);
+        handler.postDelayed(retryLoad, retryBackoff.nextDelay());
+        retryPending = true;
+    }
+
+    private void cancelRetry() {
+        handler.removeCallbacks(retryLoad);
+        retryPending = false;
     }
 
     private void hideSystemUI() {
@@ -252,17 +1257,129 @@ public class MainActivity extends Activity {
     protected void onResume() {
         super.onResume();
         hideSystemUI();
+        brightness.resume();
         if (!pageLoaded) {
-            waitForNetworkAndLoad();
+            requestLoad();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        brightness.pause();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (memoryGovernor != null) {
+            memoryGovernor.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (memoryGovernor != null) {
+            memoryGovernor.onLowMemory();
+        }
+    }
+
+    /**
+     * Trade quality for memory as pressure rises, and restore it as the
+     * governor steps back down:
+     * - MODERATE: shorter prefetch, WebView and tile caches freed
+     * - LOW: slides decoded at 3/4 size, one slide prefetched
+     * - CRITICAL: half size, no spare bitmaps, no prefetch
+     */
+    private void applyMemoryLevel(int level) {
+        float[] decodeScale = {1f, 1f, 0.75f, 0.5f};
+        int[] prefetchLimit = {Integer.MAX_VALUE, 2, 1, 0};
+        prefetcher.setDepthLimit(prefetchLimit[level]);
+        if (level == MemoryGovernor.CRITICAL) {
+            prefetcher.cancelAll();
+        }
+        if (nativeSlideshow != null) {
+            // Also resizes the bitmap pool to match
+            nativeSlideshow.setDecodeScale(decodeScale[level]);
+            if (level == MemoryGovernor.CRITICAL) {
+                nativeSlideshow.getBitmapPool().clear();
+            }
+        }
+        if (level >= MemoryGovernor.MODERATE) {
+            largeImageView.trimMemory();
+            if (pages != null) {
+                pages.freeMemory();
+            }
+        }
+        if (pages != null) {
+            pages.getFront().evaluateJavascript("window.EO1MemoryLevel && window.EO1MemoryLevel("
+                + level + ");", null);
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacksAndMessages(null);
+        if (memoryGovernor != null) {
+            memoryGovernor.stop();
+        }
+        if (sleepScheduler != null) {
+            sleepScheduler.stop();
+        }
+        if (frameMonitor != null) {
+            frameMonitor.stop();
+        }
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        Metrics.get().stop();
+        if (connectivity != null) {
+            connectivity.stop();
+        }
+        if (lastSlides != null) {
+            lastSlides.shutdown();
+        }
+        if (commandChannel != null) {
+            commandChannel.shutdown();
+        }
         if (updateManager != null) {
             updateManager.cleanup();
         }
+        if (nativeSlideshow != null) {
+            nativeSlideshow.stop();
+        }
+        if (manifestSync != null) {
+            manifestSync.stop();
+        }
+        if (pushChannel != null) {
+            pushChannel.stop();
+        }
+        if (origins != null) {
+            origins.shutdown();
+        }
+        if (peerDiscovery != null) {
+            peerDiscovery.stop();
+        }
+        if (peerServer != null) {
+            peerServer.stop();
+        }
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+        if (assetCache != null) {
+            assetCache.shutdown();
+        }
+        if (videoView != null) {
+            videoView.stop();
+        }
+        if (largeImageView != null) {
+            largeImageView.shutdown();
+        }
+        if (pages != null) {
+            pages.destroy();
+        }
     }
 
     @Override
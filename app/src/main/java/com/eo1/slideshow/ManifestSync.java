@@ -0,0 +1,329 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Background sync of the playlist manifest into the ContentStore:
+ * - Manifest fetched with If-None-Match, unchanged playlists cost a 304
+ * - Diffed against stored blobs by hash; only new content is downloaded
+ * - New manifest becomes active once its items are downloaded, then
+ *   unreferenced blobs are garbage-collected. Items the server does not
+ *   have or serves wrong are skipped and tried again on the next sync.
+ * - Each run downloads to its own temp files, and a run superseded by
+ *   stop() never commits
+ * - Failed syncs retried with capped, jittered exponential backoff
+ */
+public class ManifestSync {
+    private static final String TAG = "ManifestSync";
+    private static final long SYNC_INTERVAL = 15 * 60 * 1000; // 15 minutes
+    // Safety net only while the push channel announces playlist changes
+    private static final long PUSH_SYNC_INTERVAL = 2 * 60 * 60 * 1000; // 2 hours
+    private static final long RETRY_BASE_DELAY = 60 * 1000;
+    private static final int TIMEOUT = 15000;
+
+    private final ContentStore store;
+    private final BandwidthLimiter limiter;
+    private final File dir;
+    private final Handler handler = new Handler();
+    private final Backoff backoff = new Backoff(RETRY_BASE_DELAY, SYNC_INTERVAL);
+    private volatile ExecutorService worker;
+    private volatile String manifestUrl;
+    private volatile String etag;
+    private volatile String pendingEtag;
+    private boolean running = false;
+    private boolean syncing = false;
+    private boolean pushConnected = false;
+    private long nextSyncAt;
+
+    // Status for the page
+    private volatile long lastSyncTime;
+    private volatile int lastFetched;
+    private volatile int lastDeleted;
+    private volatile int lastFailed;
+    private volatile String lastError;
+
+    private final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            syncNow();
+        }
+    };
+
+    /**
+     * @param limiter bandwidth cap shared with other background downloads
+     */
+    public ManifestSync(Context context, ContentStore store, BandwidthLimiter limiter) {
+        this.store = store;
+        this.limiter = limiter;
+        this.dir = context.getFilesDir();
+        deleteTempFiles();
+    }
+
+    /**
+     * Manifest location; a change makes the next sync a full fetch
+     */
+    public void setManifestUrl(String url) {
+        if (!url.equals(manifestUrl)) {
+            manifestUrl = url;
+            etag = null;
+        }
+    }
+
+    /**
+     * Relax the sync interval while the push channel is connected; playlist
+     * changes then arrive as reload events
+     */
+    public void setPushConnected(boolean connected) {
+        if (pushConnected && !connected && running && !syncing
+                && nextSyncAt - SystemClock.elapsedRealtime() > SYNC_INTERVAL) {
+            // Without push, hold to the normal interval again
+            schedule(SYNC_INTERVAL);
+        }
+        pushConnected = connected;
+    }
+
+    /**
+     * Start syncing now and every SYNC_INTERVAL. Must be called on the UI thread.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = Executors.newSingleThreadExecutor();
+        syncNow();
+    }
+
+    /**
+     * Stop scheduling and abort a sync in progress; stored content stays usable
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(syncRunnable);
+        worker.shutdownNow();
+        worker = null;
+        syncing = false;
+    }
+
+    /**
+     * Sync right away unless a sync is already running
+     */
+    public void syncNow() {
+        if (!running || syncing || manifestUrl == null) {
+            return;
+        }
+        syncing = true;
+        handler.removeCallbacks(syncRunnable);
+        final String url = manifestUrl;
+        final ExecutorService executor = worker;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean ok = sync(url, executor);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (executor != worker) {
+                            return;
+                        }
+                        syncing = false;
+                        long delay = ok ? (pushConnected ? PUSH_SYNC_INTERVAL : SYNC_INTERVAL)
+                            : backoff.nextDelay();
+                        if (ok) {
+                            backoff.reset();
+                        }
+                        schedule(delay);
+                    }
+                });
+            }
+        });
+    }
+
+    private void schedule(long delay) {
+        handler.removeCallbacks(syncRunnable);
+        handler.postDelayed(syncRunnable, delay);
+        nextSyncAt = SystemClock.elapsedRealtime() + delay;
+    }
+
+    public String getStatusJson() {
+        return "{\"items\":" + store.getItemCount()
+            + ",\"last_sync\":" + lastSyncTime
+            + ",\"last_fetched\":" + lastFetched
+            + ",\"last_deleted\":" + lastDeleted
+            + ",\"last_failed\":" + lastFailed
+            + ",\"last_error\":" + (lastError != null ? JSONObject.quote(lastError) : "null")
+            + "}";
+    }
+
+    /**
+     * @param executor worker the run belongs to; it may only commit while
+     *                 that is still the current one
+     */
+    private boolean sync(String url, ExecutorService executor) {
+        Metrics.get().counter("sync.runs").inc();
+        long start = SystemClock.elapsedRealtime();
+        File tmpFile = null;
+        try {
+            URL manifestUrl = new URL(url);
+            tmpFile = File.createTempFile("manifest", ".tmp", dir);
+            if (!fetchManifest(manifestUrl, tmpFile)) {
+                // Not modified, or the server does not publish a manifest
+                lastSyncTime = System.currentTimeMillis();
+                lastError = null;
+                return true;
+            }
+
+            Manifest manifest = Manifest.parse(
+                new InputStreamReader(new FileInputStream(tmpFile), "UTF-8"), manifestUrl
+            );
+            List<Manifest.Item> missing = manifest.missingFrom(store.storedHashes());
+            Log.i(TAG, manifest.getItems().size() + " items, " + missing.size() + " to fetch");
+
+            int fetched = 0;
+            int failed = 0;
+            String itemError = null;
+            for (Manifest.Item item : missing) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Sync interrupted");
+                }
+                try {
+                    long bytes = store.download(item, limiter);
+                    Metrics.get().counter("sync.bytes").add(bytes);
+                    fetched++;
+                } catch (IOException e) {
+                    if (!isItemFailure(e)) {
+                        throw e;
+                    }
+                    // One bad item must not hold back the rest of the playlist
+                    Log.w(TAG, "Skipping " + item.url + ": " + e.getMessage());
+                    itemError = e.getMessage();
+                    failed++;
+                }
+            }
+
+            if (executor != worker) {
+                throw new IOException("Sync superseded");
+            }
+            lastDeleted = store.commit(tmpFile, manifest, manifestUrl);
+            lastFetched = fetched;
+            lastFailed = failed;
+            if (failed == 0) {
+                etag = pendingEtag;
+            }
+            // Otherwise keep the old validator, so the next sync diffs again
+            lastSyncTime = System.currentTimeMillis();
+            lastError = failed > 0 ? failed + " items failed, last: " + itemError : null;
+            Metrics.get().counter("sync.items_fetched").add(fetched);
+            Metrics.get().counter("sync.items_failed").add(failed);
+            Metrics.get().histogram("sync_ms").record(SystemClock.elapsedRealtime() - start);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Sync failed: " + e.getMessage());
+            Metrics.get().counter("sync.failures").inc();
+            lastError = e.getMessage();
+            return false;
+        } finally {
+            if (tmpFile != null) {
+                // Already moved into place if the run committed
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Whether a download failed for that item alone (missing on the
+     * server, wrong content) rather than for the network as a whole
+     */
+    private static boolean isItemFailure(IOException e) {
+        return !(e instanceof InterruptedIOException
+            || e instanceof SocketException
+            || e instanceof UnknownHostException);
+    }
+
+    /**
+     * Manifests left half-written by a process that died mid-sync
+     */
+    private void deleteTempFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("manifest") && name.endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Download the manifest to tmpFile
+     * @return false if there is nothing new to apply
+     */
+    private boolean fetchManifest(URL url, File tmpFile) throws IOException {
+        HttpClient.Call call = HttpClient.get().openBackground(url.toString(), TIMEOUT);
+        try {
+            String known = etag;
+            if (known != null) {
+                call.connection().setRequestProperty("If-None-Match", known);
+            }
+            int code = call.execute();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Metrics.get().counter("sync.not_modified").inc();
+                return false;
+            }
+            if (code == 404) {
+                return false;
+            }
+            if (code != 200) {
+                throw new IOException("HTTP " + code + " for manifest");
+            }
+            String type = call.contentType();
+            if (type != null && type.startsWith("text/html")) {
+                // Server answered with the page itself: no manifest support
+                return false;
+            }
+            pendingEtag = call.header("ETag");
+
+            InputStream in = call.body();
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+            return true;
+        } finally {
+            call.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.eo1.slideshow;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Graduated response to memory pressure, so the frame degrades instead of
+ * being killed:
+ * - onTrimMemory / onLowMemory signals mapped to NORMAL, MODERATE, LOW and
+ *   CRITICAL; a higher level is applied at once
+ * - Quality comes back one level at a time, once no new signal has arrived
+ *   for RECOVERY_DELAY and the heap has room again
+ * - Every level change logged and counted in Metrics
+ *
+ * What each level means for caches, decode size and prefetch is up to the
+ * Listener. Must be used on the UI thread.
+ */
+public class MemoryGovernor {
+    private static final String TAG = "MemoryGovernor";
+    private static final long RECOVERY_DELAY = 5 * 60 * 1000; // 5 minutes
+    // Heap use above which recovery waits
+    private static final double RECOVERY_HEAP_RATIO = 0.6;
+
+    public static final int NORMAL = 0;
+    public static final int MODERATE = 1;
+    public static final int LOW = 2;
+    public static final int CRITICAL = 3;
+
+    private static final String[] NAMES = {"normal", "moderate", "low", "critical"};
+
+    public interface Listener {
+        void onMemoryLevelChanged(int level);
+    }
+
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private int level = NORMAL;
+    private long lastSignal;
+
+    private final Runnable recover = new Runnable() {
+        @Override
+        public void run() {
+            recoverStep();
+        }
+    };
+
+    public MemoryGovernor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forwarded from Activity.onTrimMemory
+     */
+    public void onTrimMemory(int trimLevel) {
+        int mapped;
+        if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mapped = CRITICAL;
+        } else if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mapped = LOW;
+        } else if (trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mapped = MODERATE;
+        } else {
+            // UI hidden: not memory pressure as such
+            return;
+        }
+        Metrics.get().counter("memory.trim_" + trimLevel).inc();
+        onPressure(mapped);
+    }
+
+    /**
+     * Forwarded from Activity.onLowMemory
+     */
+    public void onLowMemory() {
+        Metrics.get().counter("memory.low_memory").inc();
+        onPressure(CRITICAL);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public String getStateJson() {
+        Runtime runtime = Runtime.getRuntime();
+        return "{\"level\":\"" + NAMES[level] + "\""
+            + ",\"heap_used\":" + (runtime.totalMemory() - runtime.freeMemory())
+            + ",\"heap_max\":" + runtime.maxMemory()
+            + ",\"last_signal\":" + lastSignal
+            + "}";
+    }
+
+    public void stop() {
+        handler.removeCallbacks(recover);
+    }
+
+    private void onPressure(int pressure) {
+        lastSignal = System.currentTimeMillis();
+        Metrics.get().histogram("memory.heap_used_pct").record(heapUsedPercent());
+        if (pressure > level) {
+            setLevel(pressure);
+        }
+        handler.removeCallbacks(recover);
+        handler.postDelayed(recover, RECOVERY_DELAY);
+    }
+
+    private void recoverStep() {
+        if (level == NORMAL) {
+            return;
+        }
+        if (heapUsedPercent() > RECOVERY_HEAP_RATIO * 100) {
+            Log.i(TAG, "Heap still at " + heapUsedPercent() + "%, holding " + NAMES[level]);
+            handler.postDelayed(recover, RECOVERY_DELAY);
+            return;
+        }
+        setLevel(level - 1);
+        if (level > NORMAL) {
+            handler.postDelayed(recover, RECOVERY_DELAY);
+        }
+    }
+
+    private void setLevel(int newLevel) {
+        Log.i(TAG, NAMES[level] + " -> " + NAMES[newLevel] + " (heap " + heapUsedPercent() + "%)");
+        Metrics.get().counter("memory.level_changes").inc();
+        Metrics.get().counter("memory.level_" + NAMES[newLevel]).inc();
+        level = newLevel;
+        listener.onMemoryLevelChanged(newLevel);
+    }
+
+    private static long heapUsedPercent() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used * 100 / runtime.maxMemory();
+    }
+}
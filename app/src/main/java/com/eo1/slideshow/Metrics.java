@@ -0,0 +1,219 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process performance metrics:
+ * - Counters and histograms, lock-free so hot paths can record freely
+ * - Heap gauges sampled when a snapshot is taken
+ * - Periodic snapshots kept in a fixed-size ring file across restarts
+ * - Snapshot and history readable as JSON through the JavaScript bridge
+ */
+public class Metrics {
+    private static final String TAG = "Metrics";
+    private static final String RING_FILE = "metrics.ring";
+    private static final long SNAPSHOT_INTERVAL = 5 * 60 * 1000; // 5 minutes
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final long startTime = System.currentTimeMillis();
+    private MetricsRing ring;
+    private ScheduledExecutorService scheduler;
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Monotonic event counter
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histogram with power-of-two buckets: bucket i counts values below 2^i
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 24;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Retry until max is updated
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile
+         */
+        public long percentile(double p) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void appendJson(StringBuilder sb) {
+            long n = count.get();
+            sb.append("{\"n\":").append(n)
+                .append(",\"avg\":").append(n > 0 ? sum.get() / n : 0)
+                .append(",\"p50\":").append(percentile(0.5))
+                .append(",\"p95\":").append(percentile(0.95))
+                .append(",\"max\":").append(max.get())
+                .append('}');
+        }
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Open the ring file and start periodic snapshots
+     */
+    public synchronized void start(Context context) {
+        if (scheduler != null) {
+            return;
+        }
+        ring = new MetricsRing(new File(context.getFilesDir(), RING_FILE));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                persistSnapshot();
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a final snapshot and stop the schedule
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        persistSnapshot();
+    }
+
+    private void persistSnapshot() {
+        MetricsRing current = ring;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.append(snapshotJson());
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to persist metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Current values of all metrics plus heap gauges
+     */
+    public String snapshotJson() {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"time\":").append(System.currentTimeMillis())
+            .append(",\"since\":").append(startTime)
+            .append(",\"uptime\":").append(SystemClock.elapsedRealtime())
+            .append(",\"version\":").append(BuildConfig.VERSION_CODE)
+            .append(",\"heap\":").append(runtime.totalMemory() - runtime.freeMemory())
+            .append(",\"heap_max\":").append(runtime.maxMemory())
+            .append(",\"native_heap\":").append(Debug.getNativeHeapAllocatedSize());
+
+        sb.append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":").append(entry.getValue().get());
+        }
+        sb.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":");
+            entry.getValue().appendJson(sb);
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /**
+     * Persisted snapshots, oldest first, as a JSON array
+     */
+    public String historyJson() {
+        MetricsRing current = ring;
+        return current != null ? current.readAllJson() : "[]";
+    }
+}
@@ -0,0 +1,109 @@
+package com.eo1.slideshow;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Fixed-size ring of metric snapshots in a single file, so history
+ * survives restarts without ever growing.
+ *
+ * Layout: header (magic, next slot), then SLOTS records of RECORD_SIZE
+ * bytes, each a length-prefixed UTF-8 JSON snapshot.
+ */
+class MetricsRing {
+    private static final String TAG = "MetricsRing";
+    private static final int MAGIC = 0x454F314D; // "EO1M"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 4096;
+    private static final int SLOTS = 288; // 24 hours of 5 minute snapshots
+
+    private final File file;
+
+    MetricsRing(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Store a snapshot in the next slot, overwriting the oldest
+     */
+    synchronized void append(String json) throws IOException {
+        byte[] data = json.getBytes("UTF-8");
+        if (data.length > RECORD_SIZE - 4) {
+            Log.w(TAG, "Snapshot too large (" + data.length + " bytes), dropped");
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int next = readNext(raf);
+            long pos = HEADER_SIZE + (long) next * RECORD_SIZE;
+            // Invalidate the slot first so a torn write is never read back
+            raf.seek(pos);
+            raf.writeInt(0);
+            raf.write(data);
+            raf.seek(pos);
+            raf.writeInt(data.length);
+
+            // Advance the header only after the record is written
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt((next + 1) % SLOTS);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * All stored snapshots, oldest first, as a JSON array
+     */
+    synchronized String readAllJson() {
+        StringBuilder sb = new StringBuilder("[");
+        if (!file.exists()) {
+            return sb.append(']').toString();
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                int next = readNext(raf);
+                byte[] buffer = new byte[RECORD_SIZE];
+                boolean first = true;
+                for (int i = 0; i < SLOTS; i++) {
+                    int slot = (next + i) % SLOTS;
+                    long pos = HEADER_SIZE + (long) slot * RECORD_SIZE;
+                    if (pos + 4 > raf.length()) {
+                        continue;
+                    }
+                    raf.seek(pos);
+                    int length = raf.readInt();
+                    if (length <= 0 || length > RECORD_SIZE - 4 || pos + 4 + length > raf.length()) {
+                        continue;
+                    }
+                    raf.readFully(buffer, 0, length);
+                    if (!first) sb.append(',');
+                    first = false;
+                    sb.append(new String(buffer, 0, length, "UTF-8"));
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read metrics history: " + e.getMessage());
+        }
+        return sb.append(']').toString();
+    }
+
+    private static int readNext(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return 0;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC) {
+            return 0;
+        }
+        int next = raf.readInt();
+        return next >= 0 && next < SLOTS ? next : 0;
+    }
+}
@@ -0,0 +1,357 @@
+package com.eo1.slideshow;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Native slideshow renderer, an alternative to the WebView page:
+ * - Playlist from the device page endpoint (/d/<deviceId>?format=json)
+ * - Images loaded through the AssetCache and decoded at display size
+ * - Next slide decoded in the background while the current one shows
+ * - Crossfades in a NativeSlideshowView using pooled bitmaps
+ */
+public class NativeSlideshow {
+    private static final String TAG = "NativeSlideshow";
+    private static final long DEFAULT_DURATION = 30000;
+    private static final long PLAYLIST_RETRY_DELAY = 30000;
+    private static final long SKIP_DELAY = 5000;
+    private static final int TIMEOUT = 15000;
+
+    /**
+     * Notified on the UI thread
+     */
+    public interface Listener {
+        /** Server asks for the WebView page instead */
+        void onWebModeRequested();
+
+        /** A slide finished loading and is fading in */
+        void onSlideShown(String url);
+    }
+
+    static class Slide {
+        String url;
+        long durationMs;
+    }
+
+    private final NativeSlideshowView view;
+    private final AssetCache cache;
+    private final ContentStore store;
+    private final BitmapPool pool;
+    private final SlideDecoder decoder;
+    private final Listener listener;
+    private final int displayWidth;
+    private final int displayHeight;
+    private final Handler handler = new Handler();
+    private final Metrics.Histogram slideWait = Metrics.get().histogram("slide_wait_ms");
+    private ExecutorService worker;
+
+    private String playlistUrl;
+    private List<Slide> slides = new ArrayList<Slide>();
+    private int index = -1;
+    private volatile int generation;
+
+    // Next slide decoded ahead of time
+    private String preparedUrl;
+    private Bitmap prepared;
+
+    private final Runnable advance = new Runnable() {
+        @Override
+        public void run() {
+            showNext();
+        }
+    };
+
+    public NativeSlideshow(NativeSlideshowView view, AssetCache cache, ContentStore store,
+                           int displayWidth, int displayHeight, Listener listener) {
+        this.view = view;
+        this.cache = cache;
+        this.store = store;
+        this.listener = listener;
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        // Current, outgoing and prepared slide
+        this.pool = new BitmapPool(3L * displayWidth * displayHeight * 4);
+        this.decoder = new SlideDecoder(pool, displayWidth, displayHeight);
+        view.setBitmapPool(pool);
+    }
+
+    /**
+     * Start (or restart) playback from a playlist URL
+     */
+    public void start(String playlistUrl) {
+        stop();
+        this.playlistUrl = playlistUrl;
+        worker = Executors.newSingleThreadExecutor();
+        loadPlaylist(generation);
+    }
+
+    /**
+     * Stop playback and release decoded bitmaps
+     */
+    public void stop() {
+        generation++;
+        handler.removeCallbacksAndMessages(null);
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+        synchronized (this) {
+            pool.put(prepared);
+            prepared = null;
+            preparedUrl = null;
+        }
+        view.clear();
+        index = -1;
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return pool;
+    }
+
+    /**
+     * Decode slides below display size to save memory, 1 for full size.
+     * Applies from the next decoded slide; the pool shrinks to match.
+     */
+    public void setDecodeScale(float scale) {
+        int width = Math.max(1, Math.round(displayWidth * scale));
+        int height = Math.max(1, Math.round(displayHeight * scale));
+        decoder.setTargetSize(width, height);
+        pool.setMaxBytes(3L * width * height * 4);
+    }
+
+    private void loadPlaylist(final int gen) {
+        final String url = playlistUrl;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PlaylistResult result = fetchPlaylist(url);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (gen == generation) {
+                            onPlaylistLoaded(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPlaylistLoaded(PlaylistResult result) {
+        if (result.webModeRequested) {
+            listener.onWebModeRequested();
+            return;
+        }
+        if (result.slides != null && !result.slides.isEmpty()) {
+            slides = result.slides;
+            Log.i(TAG, "Playlist loaded: " + slides.size() + " slides");
+        } else if (slides.isEmpty()) {
+            Log.w(TAG, "Playlist unavailable, retrying");
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    loadPlaylist(generation);
+                }
+            }, PLAYLIST_RETRY_DELAY);
+            return;
+        } else {
+            Log.w(TAG, "Playlist refresh failed, replaying previous playlist");
+        }
+        showSlide(0);
+    }
+
+    private void showNext() {
+        if (index + 1 >= slides.size()) {
+            // Pick up playlist changes once per cycle
+            loadPlaylist(generation);
+        } else {
+            showSlide(index + 1);
+        }
+    }
+
+    private void showSlide(final int position) {
+        final String url = slides.get(position).url;
+        Bitmap bitmap = takePrepared(url);
+        if (bitmap != null) {
+            slideWait.record(0);
+            display(position, bitmap);
+            return;
+        }
+
+        // Next slide was not ready in time: measure how long the show stalls
+        final long start = SystemClock.elapsedRealtime();
+        final int gen = generation;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap decoded = decodeSlide(url);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (gen != generation) {
+                            pool.put(decoded);
+                        } else if (decoded != null) {
+                            slideWait.record(SystemClock.elapsedRealtime() - start);
+                            display(position, decoded);
+                        } else {
+                            // Skip slides that cannot be loaded
+                            index = position;
+                            handler.postDelayed(advance, SKIP_DELAY);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void display(int position, Bitmap bitmap) {
+        index = position;
+        view.show(bitmap);
+        listener.onSlideShown(slides.get(position).url);
+        handler.postDelayed(advance, currentDuration());
+        if (slides.size() > 1) {
+            prepare(slides.get((position + 1) % slides.size()).url);
+        }
+    }
+
+    /**
+     * Decode the upcoming slide while the current one is on screen
+     */
+    private void prepare(final String url) {
+        final int gen = generation;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap decoded = decodeSlide(url);
+                synchronized (NativeSlideshow.this) {
+                    if (gen != generation || decoded == null) {
+                        pool.put(decoded);
+                        return;
+                    }
+                    pool.put(prepared);
+                    prepared = decoded;
+                    preparedUrl = url;
+                }
+            }
+        });
+    }
+
+    private synchronized Bitmap takePrepared(String url) {
+        if (prepared == null || !url.equals(preparedUrl)) {
+            return null;
+        }
+        Bitmap bitmap = prepared;
+        prepared = null;
+        preparedUrl = null;
+        return bitmap;
+    }
+
+    private Bitmap decodeSlide(String url) {
+        try {
+            // Synced content first, then the cache (which may download)
+            File file = store.getFile(url);
+            if (file == null) {
+                file = cache.getFile(url);
+            }
+            return file != null ? decoder.decode(file) : null;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to load slide " + url + ": " + e.getMessage());
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory decoding " + url);
+            pool.clear();
+            return null;
+        }
+    }
+
+    private long currentDuration() {
+        if (index >= 0 && index < slides.size()) {
+            return slides.get(index).durationMs;
+        }
+        return DEFAULT_DURATION;
+    }
+
+    static class PlaylistResult {
+        List<Slide> slides;
+        boolean webModeRequested;
+    }
+
+    /**
+     * Fetch and parse the JSON playlist:
+     * {"interval": 30, "render_mode": "native",
+     *  "slides": ["/img/a.jpg", {"url": "/img/b.jpg", "duration": 10}]}
+     */
+    static PlaylistResult fetchPlaylist(String playlistUrl) {
+        PlaylistResult result = new PlaylistResult();
+        HttpClient.Call call = null;
+        try {
+            URL url = new URL(playlistUrl);
+            call = HttpClient.get().open(playlistUrl, TIMEOUT);
+            call.connection().setRequestProperty("Accept", "application/json");
+
+            if (call.execute() != 200) {
+                return result;
+            }
+            String contentType = call.contentType();
+            if (contentType != null && contentType.startsWith("text/html")) {
+                // Server only knows the WebView page for this device
+                Log.w(TAG, "No native playlist on server, falling back to WebView");
+                result.webModeRequested = true;
+                return result;
+            }
+
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(call.body(), "UTF-8")
+            );
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                response.append(line);
+            }
+            reader.close();
+
+            JSONObject json = new JSONObject(response.toString());
+            if (DeviceConfig.RENDER_MODE_WEB.equals(json.optString("render_mode"))) {
+                result.webModeRequested = true;
+                return result;
+            }
+
+            long interval = json.optLong("interval", DEFAULT_DURATION / 1000) * 1000;
+            JSONArray array = json.getJSONArray("slides");
+            result.slides = new ArrayList<Slide>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                Slide slide = new Slide();
+                JSONObject item = array.optJSONObject(i);
+                String src = item != null ? item.getString("url") : array.getString(i);
+                slide.url = new URL(url, src).toString();
+                slide.durationMs = item != null
+                    ? item.optLong("duration", interval / 1000) * 1000
+                    : interval;
+                result.slides.add(slide);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Playlist fetch failed", e);
+        } finally {
+            if (call != null) call.close();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.AttributeSet;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+/**
+ * Two stacked ImageViews that crossfade between slides.
+ * Bitmaps that scroll out of view are handed back to the BitmapPool.
+ */
+public class NativeSlideshowView extends FrameLayout {
+    private static final long CROSSFADE_DURATION = 1500;
+
+    private final ImageView bottom;
+    private final ImageView top;
+    private Bitmap bottomBitmap;
+    private Bitmap topBitmap;
+    private Runnable pendingEnd;
+    private BitmapPool pool;
+
+    public NativeSlideshowView(Context context) {
+        this(context, null);
+    }
+
+    public NativeSlideshowView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        bottom = createImageView(context);
+        top = createImageView(context);
+        addView(bottom);
+        addView(top);
+    }
+
+    private static ImageView createImageView(Context context) {
+        ImageView view = new ImageView(context);
+        view.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        view.setScaleType(ImageView.ScaleType.FIT_CENTER);
+        return view;
+    }
+
+    public void setBitmapPool(BitmapPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Crossfade to a new slide. Must be called on the UI thread.
+     */
+    public void show(Bitmap bitmap) {
+        finishTransition();
+
+        if (topBitmap != null) {
+            // Top is showing: put the new slide underneath and fade the top out
+            final Bitmap outgoing = topBitmap;
+            bottom.setImageBitmap(bitmap);
+            bottomBitmap = bitmap;
+            topBitmap = null;
+            startTransition(0f, new Runnable() {
+                @Override
+                public void run() {
+                    top.setAlpha(0f);
+                    top.setImageDrawable(null);
+                    release(outgoing);
+                }
+            });
+        } else {
+            // Bottom is showing: fade the new slide in on top
+            final Bitmap outgoing = bottomBitmap;
+            top.setAlpha(0f);
+            top.setImageBitmap(bitmap);
+            topBitmap = bitmap;
+            bottomBitmap = null;
+            startTransition(1f, new Runnable() {
+                @Override
+                public void run() {
+                    top.setAlpha(1f);
+                    bottom.setImageDrawable(null);
+                    release(outgoing);
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove both slides and return their bitmaps to the pool
+     */
+    public void clear() {
+        finishTransition();
+        top.setImageDrawable(null);
+        bottom.setImageDrawable(null);
+        release(topBitmap);
+        release(bottomBitmap);
+        topBitmap = null;
+        bottomBitmap = null;
+    }
+
+    private void startTransition(float topAlpha, final Runnable end) {
+        pendingEnd = end;
+        top.animate().alpha(topAlpha).setDuration(CROSSFADE_DURATION).withEndAction(new Runnable() {
+            @Override
+            public void run() {
+                if (pendingEnd == end) {
+                    pendingEnd = null;
+                    end.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Jump a running crossfade to its end so its outgoing bitmap is released
+     */
+    private void finishTransition() {
+        top.animate().cancel();
+        Runnable end = pendingEnd;
+        pendingEnd = null;
+        if (end != null) {
+            end.run();
+        }
+    }
+
+    private void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        if (pool != null) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+}
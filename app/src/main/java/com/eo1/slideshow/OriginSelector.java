@@ -0,0 +1,300 @@
+package com.eo1.slideshow;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Chooses the server origin (scheme://host:port) all traffic goes to:
+ * - Configured list of origins/mirrors, e.g. a local cache box first
+ * - RTT of each probed in the background; the fastest healthy one wins
+ * - Hysteresis: a healthy current origin is only replaced by one that is
+ *   clearly faster, so traffic does not flap between similar mirrors
+ * - Failures reported by callers mark the origin down and fail over at once
+ * - Listener notified on the UI thread when the choice changes
+ *
+ * getOrigin() is safe to call from any thread.
+ */
+public class OriginSelector {
+    private static final String TAG = "OriginSelector";
+    public static final String DEFAULT_ORIGIN = "http://93.127.216.80:3000";
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final long PROBE_INTERVAL = 10 * 60 * 1000; // 10 minutes
+    // Smoothing for RTT samples
+    private static final double RTT_ALPHA = 0.3;
+    // A new origin must be this much faster to replace a healthy one
+    private static final double SWITCH_RATIO = 0.7;
+
+    public interface Listener {
+        void onOriginChanged(String origin);
+    }
+
+    private static class Origin {
+        final String base;
+        volatile boolean healthy = true;
+        volatile double rtt = -1;
+        volatile long lastProbe;
+
+        Origin(String base) {
+            this.base = base;
+        }
+    }
+
+    private final Handler handler = new Handler();
+    private final ExecutorService prober = Executors.newSingleThreadExecutor();
+    private final Listener listener;
+    private volatile List<Origin> origins;
+    private volatile Origin current;
+    private boolean started = false;
+
+    private final Runnable probeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prober.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probeAll();
+                }
+            });
+            handler.postDelayed(this, PROBE_INTERVAL);
+        }
+    };
+
+    /**
+     * @param list comma-separated origins in order of preference, or null
+     *             for DEFAULT_ORIGIN
+     */
+    public OriginSelector(String list, Listener listener) {
+        this.listener = listener;
+        setOrigins(list);
+    }
+
+    /**
+     * Replace the origin list. The first entry is used until probes say
+     * otherwise.
+     */
+    public synchronized void setOrigins(String list) {
+        List<Origin> parsed = new ArrayList<Origin>();
+        if (list != null) {
+            for (String base : list.split(",")) {
+                base = base.trim();
+                while (base.endsWith("/")) {
+                    base = base.substring(0, base.length() - 1);
+                }
+                if (base.startsWith("http://") || base.startsWith("https://")) {
+                    parsed.add(new Origin(base));
+                }
+            }
+        }
+        if (parsed.isEmpty()) {
+            parsed.add(new Origin(DEFAULT_ORIGIN));
+        }
+        origins = parsed;
+        select(parsed.get(0));
+    }
+
+    /**
+     * Probe periodically in the background. Must be called on the UI thread.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        handler.post(probeRunnable);
+    }
+
+    public void stop() {
+        started = false;
+        handler.removeCallbacks(probeRunnable);
+    }
+
+    public void shutdown() {
+        stop();
+        prober.shutdownNow();
+    }
+
+    /**
+     * Current origin, without a trailing slash
+     */
+    public String getOrigin() {
+        return current.base;
+    }
+
+    /**
+     * Whether a URL is served by one of the configured origins
+     */
+    public boolean isOrigin(String url) {
+        if (url == null) {
+            return false;
+        }
+        for (Origin origin : origins) {
+            if (url.startsWith(origin.base + "/") || url.equals(origin.base)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Key for content that does not depend on the origin serving it: the
+     * path for URLs on a configured origin, so stored content survives a
+     * switch between mirrors. Other URLs are returned unchanged.
+     */
+    public String cacheKey(String url) {
+        if (url == null) {
+            return null;
+        }
+        for (Origin origin : origins) {
+            if (url.startsWith(origin.base + "/")) {
+                return url.substring(origin.base.length());
+            }
+        }
+        return url;
+    }
+
+    /**
+     * A request to the origin failed: mark it down and switch to the best
+     * remaining one. Safe to call from any thread.
+     */
+    public void reportFailure(String base) {
+        Origin failed = find(base);
+        if (failed == null || !failed.healthy) {
+            return;
+        }
+        Log.i(TAG, "Origin failed: " + base);
+        Metrics.get().counter("origin.failures").inc();
+        failed.healthy = false;
+        synchronized (this) {
+            if (failed == current) {
+                Origin best = best(null);
+                if (best != null) {
+                    select(best);
+                }
+            }
+        }
+    }
+
+    /**
+     * Probe every origin now and update the choice. Blocks; call off the
+     * UI thread.
+     * @return whether any origin answered
+     */
+    public boolean probeAll() {
+        boolean any = false;
+        for (Origin origin : origins) {
+            long rtt = probe(origin.base);
+            origin.lastProbe = System.currentTimeMillis();
+            if (rtt < 0) {
+                origin.healthy = false;
+                continue;
+            }
+            any = true;
+            origin.healthy = true;
+            origin.rtt = origin.rtt < 0 ? rtt : RTT_ALPHA * rtt + (1 - RTT_ALPHA) * origin.rtt;
+        }
+        synchronized (this) {
+            Origin best = best(current);
+            if (best != null) {
+                select(best);
+            }
+        }
+        return any;
+    }
+
+    public String getStatusJson() {
+        StringBuilder json = new StringBuilder("{\"current\":")
+            .append(JSONObject.quote(current.base)).append(",\"origins\":[");
+        List<Origin> list = origins;
+        for (int i = 0; i < list.size(); i++) {
+            Origin origin = list.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"origin\":").append(JSONObject.quote(origin.base))
+                .append(",\"healthy\":").append(origin.healthy)
+                .append(",\"rtt_ms\":").append(Math.round(origin.rtt))
+                .append(",\"last_probe\":").append(origin.lastProbe)
+                .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Fastest healthy origin, keeping the given one unless another is
+     * clearly faster. Unprobed origins count as slower than probed ones.
+     * @return origin, or null if none is healthy
+     */
+    private Origin best(Origin keep) {
+        Origin best = null;
+        for (Origin origin : origins) {
+            if (origin.healthy && (best == null || faster(origin, best))) {
+                best = origin;
+            }
+        }
+        if (keep != null && keep.healthy && best != null && keep.rtt >= 0 && best.rtt >= 0
+                && best.rtt > keep.rtt * SWITCH_RATIO) {
+            return keep;
+        }
+        return best;
+    }
+
+    private static boolean faster(Origin a, Origin b) {
+        if (a.rtt < 0) return false;
+        return b.rtt < 0 || a.rtt < b.rtt;
+    }
+
+    private void select(final Origin origin) {
+        if (origin == current) {
+            return;
+        }
+        boolean initial = current == null;
+        current = origin;
+        if (initial) {
+            return;
+        }
+        Log.i(TAG, "Switched to " + origin.base);
+        Metrics.get().counter("origin.switches").inc();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOriginChanged(origin.base);
+            }
+        });
+    }
+
+    private Origin find(String base) {
+        for (Origin origin : origins) {
+            if (origin.base.equals(base)) {
+                return origin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Time for a HEAD request to the origin
+     * @return milliseconds, or -1 if it did not answer
+     */
+    private static long probe(String base) {
+        HttpClient.Call call = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            call = HttpClient.get().open(base + "/", PROBE_TIMEOUT);
+            call.connection().setRequestMethod("HEAD");
+            // Any HTTP answer below 500 means the origin is up. The kept-alive
+            // connection then serves the next real request without a handshake.
+            int code = call.execute();
+            return code > 0 && code < 500 ? SystemClock.elapsedRealtime() - start : -1;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (call != null) call.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.eo1.slideshow;
+
+import android.os.Handler;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+/**
+ * Double-buffered page loading with two WebViews in one container:
+ * - Each load goes into the hidden instance, stacked under the visible one
+ * - The hidden instance is brought to front only after onPageFinished and
+ *   a first-paint signal from the page (two animation frames later)
+ * - The previous instance is blanked and kept for the next load
+ * - A failed load leaves the visible page untouched
+ */
+public class PageSwapper {
+    private static final String BLANK = "about:blank";
+    private static final long FIRST_PAINT_TIMEOUT = 3000;
+
+    public interface Listener {
+        /** Offline cache hook, same contract as shouldInterceptRequest */
+        WebResourceResponse interceptRequest(String url);
+        /** A newly loaded page is now the visible one */
+        void onPageShown(String url);
+        /** A page failed to load */
+        void onLoadFailed(int errorCode, String description);
+    }
+
+    private final ViewGroup container;
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private WebView front;
+    private WebView back;
+    private int generation = 0;
+    private boolean pending = false;
+    private boolean finished = false;
+
+    // Pages without working requestAnimationFrame still get shown
+    private final Runnable paintTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Metrics.get().counter("page.paint_timeouts").inc();
+            swap();
+        }
+    };
+
+    /**
+     * @param container parent of both WebViews; other views above it are not affected
+     * @param visible the WebView shown first
+     * @param hidden the WebView used for the first load
+     */
+    public PageSwapper(ViewGroup container, WebView visible, WebView hidden, Listener listener) {
+        this.container = container;
+        this.front = visible;
+        this.back = hidden;
+        this.listener = listener;
+        front.setWebViewClient(new Client());
+        back.setWebViewClient(new Client());
+        back.setVisibility(View.INVISIBLE);
+    }
+
+    /**
+     * Load a page offscreen; it replaces the visible page once painted
+     */
+    public void load(String url) {
+        handler.removeCallbacks(paintTimeout);
+        generation++;
+        pending = true;
+        finished = false;
+        back.stopLoading();
+        // Visible but covered by the front page, so it lays out and paints
+        back.setVisibility(View.VISIBLE);
+        back.loadUrl(url);
+    }
+
+    /**
+     * First-paint signal from the page, called with the token injected
+     * after onPageFinished. Must be called on the UI thread.
+     */
+    public void onFirstPaint(WebView view, int token) {
+        if (pending && finished && view == back && token == generation) {
+            swap();
+        }
+    }
+
+    public WebView getFront() {
+        return front;
+    }
+
+    /**
+     * The offscreen instance: the page being loaded, or blank
+     */
+    public WebView getBack() {
+        return back;
+    }
+
+    public boolean isLoading() {
+        return pending;
+    }
+
+    /**
+     * Suspend both pages and all JS timers
+     */
+    public void pause() {
+        front.onPause();
+        back.onPause();
+        front.pauseTimers();
+    }
+
+    public void resume() {
+        front.resumeTimers();
+        front.onResume();
+        back.onResume();
+    }
+
+    /**
+     * Release in-memory caches of both pages
+     */
+    @SuppressWarnings("deprecation")
+    public void freeMemory() {
+        front.clearCache(false);
+        front.freeMemory();
+        back.freeMemory();
+    }
+
+    /**
+     * Swap in fresh WebViews, e.g. when a page has wedged its renderer.
+     * The old ones are destroyed and nothing is shown until the next load.
+     */
+    public void replaceViews(WebView visible, WebView hidden) {
+        handler.removeCallbacksAndMessages(null);
+        generation++;
+        pending = false;
+        finished = false;
+        container.removeView(front);
+        container.removeView(back);
+        front.destroy();
+        back.destroy();
+        front = visible;
+        back = hidden;
+        front.setWebViewClient(new Client());
+        back.setWebViewClient(new Client());
+        back.setVisibility(View.INVISIBLE);
+        container.addView(back, 0, new ViewGroup.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        container.addView(front, 1, new ViewGroup.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+    }
+
+    public void destroy() {
+        handler.removeCallbacksAndMessages(null);
+        front.destroy();
+        back.destroy();
+    }
+
+    private void swap() {
+        handler.removeCallbacks(paintTimeout);
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        WebView shown = back;
+        back = front;
+        front = shown;
+        container.bringChildToFront(front);
+        container.invalidate();
+        blank(back);
+        listener.onPageShown(front.getUrl());
+    }
+
+    private void blank(WebView view) {
+        view.stopLoading();
+        view.setVisibility(View.INVISIBLE);
+        view.loadUrl(BLANK);
+    }
+
+    private class Client extends WebViewClient {
+        @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+            WebResourceResponse cached = listener.interceptRequest(url);
+            return cached != null ? cached : super.shouldInterceptRequest(view, url);
+        }
+
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            super.onPageFinished(view, url);
+            // onPageFinished also fires for the error page of a failed load
+            if (!pending || finished || view != back || BLANK.equals(url)) {
+                return;
+            }
+            finished = true;
+            view.evaluateJavascript(
+                "requestAnimationFrame(function(){requestAnimationFrame(function(){"
+                + "window.EO1 && EO1.pageReady(" + generation + ");});});", null);
+            handler.postDelayed(paintTimeout, FIRST_PAINT_TIMEOUT);
+        }
+
+        @Override
+        public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+            super.onReceivedError(view, errorCode, description, failingUrl);
+            if (BLANK.equals(failingUrl)) {
+                return;
+            }
+            if (view == back) {
+                if (!pending) {
+                    return;
+                }
+                // Keep showing the current page
+                pending = false;
+                handler.removeCallbacks(paintTimeout);
+                blank(back);
+            }
+            listener.onLoadFailed(errorCode, description);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Finds other frames on the LAN:
+ * - Each frame broadcasts "EO1PEER1 <instance> <port>" over UDP every
+ *   ANNOUNCE_INTERVAL and listens for the others
+ * - Peers not heard from within PEER_TTL are dropped
+ * - Static peers (host:port) are always included, for networks that
+ *   filter broadcast and for loopback testing
+ * - Failed announcements (no network yet) are retried on the next
+ *   interval, and at once when the network comes back
+ */
+public class PeerDiscovery {
+    private static final String TAG = "PeerDiscovery";
+    public static final int DISCOVERY_PORT = 8766;
+    private static final String PREFIX = "EO1PEER1";
+    private static final long ANNOUNCE_INTERVAL = 30 * 1000;
+    private static final long PEER_TTL = 100 * 1000;
+    private static final int RECEIVE_TIMEOUT = 1000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final Context context;
+    private final int servicePort;
+    private final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+    // host:port -> last heard (ms)
+    private final Map<String, Long> discovered = new HashMap<String, Long>();
+    private volatile List<String> staticPeers = new ArrayList<String>();
+    private DatagramSocket socket;
+    private Thread thread;
+    private WifiManager.MulticastLock multicastLock;
+    // Between start() and stop()
+    private boolean enabled = false;
+    private volatile boolean announceNow = false;
+
+    /**
+     * @param servicePort port of the local PeerServer, announced to others
+     * @param staticPeers comma-separated host:port list, may be null
+     */
+    public PeerDiscovery(Context context, int servicePort, String staticPeers) {
+        this.context = context.getApplicationContext();
+        this.servicePort = servicePort;
+        setStaticPeers(staticPeers);
+    }
+
+    public void setStaticPeers(String list) {
+        List<String> peers = new ArrayList<String>();
+        if (list != null) {
+            for (String peer : list.split(",")) {
+                peer = peer.trim();
+                if (peer.length() > 0) {
+                    peers.add(peer.indexOf(':') == -1 ? peer + ":" + PeerServer.DEFAULT_PORT : peer);
+                }
+            }
+        }
+        staticPeers = peers;
+    }
+
+    /**
+     * Start announcing and listening; failures leave only static peers
+     */
+    public synchronized void start() {
+        enabled = true;
+        if (thread != null) {
+            return;
+        }
+        try {
+            socket = new DatagramSocket(null);
+            socket.setReuseAddress(true);
+            socket.setBroadcast(true);
+            socket.setSoTimeout(RECEIVE_TIMEOUT);
+            socket.bind(new InetSocketAddress(DISCOVERY_PORT));
+        } catch (IOException e) {
+            Log.w(TAG, "Discovery unavailable: " + e.getMessage());
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+            return;
+        }
+        WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        if (wifi != null) {
+            multicastLock = wifi.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+        final DatagramSocket listening = socket;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop(listening);
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        enabled = false;
+        release();
+    }
+
+    /**
+     * The network link came back: announce now, and start over if the
+     * socket could not be opened or the listener died
+     */
+    public synchronized void onNetworkAvailable() {
+        if (!enabled) {
+            return;
+        }
+        if (thread == null || !thread.isAlive()) {
+            release();
+            start();
+        } else {
+            announceNow = true;
+        }
+    }
+
+    private void release() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+        socket.close();
+        socket = null;
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+        synchronized (discovered) {
+            discovered.clear();
+        }
+    }
+
+    /**
+     * Known peers as host:port, static ones included, in random order so
+     * load spreads across frames
+     */
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<String>(staticPeers);
+        long now = System.currentTimeMillis();
+        synchronized (discovered) {
+            Iterator<Map.Entry<String, Long>> it = discovered.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (now - entry.getValue() > PEER_TTL) {
+                    it.remove();
+                } else if (!peers.contains(entry.getKey())) {
+                    peers.add(entry.getKey());
+                }
+            }
+        }
+        Collections.shuffle(peers);
+        return peers;
+    }
+
+    private void loop(DatagramSocket listening) {
+        byte[] buffer = new byte[256];
+        long nextAnnounce = 0;
+        boolean announceFailed = false;
+        while (!Thread.currentThread().isInterrupted() && !listening.isClosed()) {
+            long now = System.currentTimeMillis();
+            if (announceNow || now >= nextAnnounce) {
+                announceNow = false;
+                nextAnnounce = now + ANNOUNCE_INTERVAL;
+                try {
+                    announce(listening);
+                    announceFailed = false;
+                } catch (IOException e) {
+                    // E.g. ENETUNREACH when started before Wi-Fi is up
+                    if (!announceFailed && !listening.isClosed()) {
+                        Log.w(TAG, "Announce failed, retrying: " + e.getMessage());
+                    }
+                    announceFailed = true;
+                }
+            }
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                listening.receive(packet);
+                onPacket(packet);
+            } catch (SocketTimeoutException e) {
+                // Time to check for the next announcement
+            } catch (IOException e) {
+                if (listening.isClosed()) {
+                    return;
+                }
+                Log.w(TAG, "Discovery error: " + e.getMessage());
+                try {
+                    Thread.sleep(RECEIVE_TIMEOUT);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void announce(DatagramSocket listening) throws IOException {
+        byte[] message = (PREFIX + " " + instanceId + " " + servicePort).getBytes(ASCII);
+        listening.send(new DatagramPacket(message, message.length,
+            InetAddress.getByName("255.255.255.255"), DISCOVERY_PORT));
+    }
+
+    private void onPacket(DatagramPacket packet) {
+        String[] parts = new String(packet.getData(), 0, packet.getLength(), ASCII).trim().split(" ");
+        if (parts.length != 3 || !parts[0].equals(PREFIX) || parts[1].equals(instanceId)) {
+            return;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String peer = packet.getAddress().getHostAddress() + ":" + port;
+        synchronized (discovered) {
+            if (discovered.put(peer, System.currentTimeMillis()) == null) {
+                Log.i(TAG, "Found peer " + peer);
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.eo1.slideshow;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves ContentStore blobs to other frames on the LAN:
+ * - GET /blob/<sha256> only; content is addressed by hash, so the
+ *   receiver verifies every byte it gets
+ * - Files streamed with FileChannel.transferTo, without copying through
+ *   the Java heap
+ * - Small handler pool, a header deadline and a bounded transfer (a peer
+ *   reading slower than MIN_BYTES_PER_SECOND over any WRITE_TIMEOUT window
+ *   is dropped), so a slow or hostile peer cannot tie up the frame
+ */
+public class PeerServer {
+    private static final String TAG = "PeerServer";
+    public static final int DEFAULT_PORT = 8765;
+    public static final String BLOB_PATH = "/blob/";
+    private static final int HANDLER_THREADS = 2;
+    private static final int MAX_HEADER_BYTES = 4096;
+    private static final long HEADER_TIMEOUT = 5000;
+    static final long WRITE_TIMEOUT = 10000;
+    private static final long MIN_BYTES_PER_SECOND = 32 * 1024;
+    private static final long CHUNK_BYTES = 64 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ContentStore store;
+    private final int port;
+    private ServerSocketChannel server;
+    private ExecutorService handlers;
+    private Thread acceptor;
+    private final Metrics.Counter served = Metrics.get().counter("peer.served");
+    private final Metrics.Counter bytesServed = Metrics.get().counter("peer.bytes_served");
+
+    public PeerServer(ContentStore store, int port) {
+        this.store = store;
+        this.port = port;
+    }
+
+    /**
+     * Start listening; a port already in use is logged and ignored
+     */
+    public synchronized void start() {
+        if (server != null) {
+            return;
+        }
+        try {
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot listen on " + port + ": " + e.getMessage());
+            closeQuietly(server);
+            server = null;
+            return;
+        }
+        handlers = Executors.newFixedThreadPool(HANDLER_THREADS);
+        final ServerSocketChannel listening = server;
+        final ExecutorService pool = handlers;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(listening, pool);
+            }
+        }, TAG);
+        acceptor.start();
+        Log.i(TAG, "Serving blobs on port " + port);
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        closeQuietly(server);
+        server = null;
+        handlers.shutdownNow();
+        handlers = null;
+        acceptor.interrupt();
+        acceptor = null;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private void accept(ServerSocketChannel listening, ExecutorService pool) {
+        while (listening.isOpen()) {
+            final SocketChannel client;
+            try {
+                client = listening.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                return;
+            }
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            } catch (Exception e) {
+                closeQuietly(client);
+                return;
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try {
+            String path = readRequestPath(client);
+            File blob = null;
+            if (path != null && path.startsWith(BLOB_PATH)) {
+                blob = store.getBlob(path.substring(BLOB_PATH.length()));
+            }
+            if (blob == null) {
+                writeFully(client, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+                return;
+            }
+            FileInputStream in = new FileInputStream(blob);
+            try {
+                FileChannel file = in.getChannel();
+                long size = file.size();
+                writeFully(client, "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Length: " + size + "\r\n"
+                    + "Connection: close\r\n\r\n");
+                long sent = transfer(file, size, client);
+                served.inc();
+                bytesServed.add(sent);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Request failed: " + e.getMessage());
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * Read the request head within HEADER_TIMEOUT and return the path of a
+     * GET request, or null for anything else. Leaves the channel blocking.
+     */
+    private static String readRequestPath(SocketChannel client) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        long deadline = System.currentTimeMillis() + HEADER_TIMEOUT;
+        client.configureBlocking(false);
+        Selector selector = Selector.open();
+        try {
+            client.register(selector, SelectionKey.OP_READ);
+            while (!headerComplete(buffer)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !buffer.hasRemaining()) {
+                    return null;
+                }
+                if (selector.select(remaining) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                if (client.read(buffer) == -1) {
+                    return null;
+                }
+            }
+        } finally {
+            selector.close();
+            client.configureBlocking(true);
+        }
+        String head = new String(buffer.array(), 0, buffer.position(), ASCII);
+        String[] requestLine = head.substring(0, head.indexOf("\r\n")).split(" ");
+        if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+            return null;
+        }
+        return requestLine[1];
+    }
+
+    /**
+     * Send a file in chunks without blocking on a peer that stops reading.
+     * Every WRITE_TIMEOUT must move a window's worth of bytes; socket
+     * buffers draining in bursts cannot keep a stalled peer alive.
+     * @return bytes sent
+     */
+    private static long transfer(FileChannel file, long size, SocketChannel client) throws IOException {
+        long window = MIN_BYTES_PER_SECOND * WRITE_TIMEOUT / 1000;
+        long windowStart = System.currentTimeMillis();
+        long windowSent = 0;
+        long sent = 0;
+        client.configureBlocking(false);
+        Selector selector = Selector.open();
+        try {
+            client.register(selector, SelectionKey.OP_WRITE);
+            while (sent < size) {
+                long n = file.transferTo(sent, Math.min(CHUNK_BYTES, size - sent), client);
+                long now = System.currentTimeMillis();
+                if (n > 0) {
+                    sent += n;
+                    windowSent += n;
+                    if (windowSent >= window) {
+                        windowStart = now;
+                        windowSent = 0;
+                    }
+                }
+                long remaining = windowStart + WRITE_TIMEOUT - now;
+                if (sent < size && remaining <= 0) {
+                    throw new IOException("Peer too slow, " + sent + " of " + size + " bytes sent");
+                }
+                if (n <= 0) {
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                }
+            }
+        } finally {
+            selector.close();
+        }
+        return sent;
+    }
+
+    private static boolean headerComplete(ByteBuffer buffer) {
+        int end = buffer.position();
+        byte[] bytes = buffer.array();
+        for (int i = 3; i < end; i++) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeFully(SocketChannel client, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(ASCII));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
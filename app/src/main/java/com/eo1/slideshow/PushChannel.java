@@ -0,0 +1,280 @@
+package com.eo1.slideshow;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived server-sent events (SSE) connection for fleet operations:
+ * - One keep-alive GET with Accept: text/event-stream; the server pushes
+ *   events as they happen instead of the device polling for them
+ * - Server sends a heartbeat (comment line or "ping" event) at least every
+ *   HEARTBEAT_TIMEOUT / 2; a silent connection is treated as dead
+ * - Reconnects with capped, jittered exponential backoff, resuming with
+ *   Last-Event-ID so events sent in between can be replayed
+ * - Events delivered to the Listener on the UI thread
+ * - Each start() gets its own worker and connection; stop() closes that
+ *   connection even if its worker is still connecting
+ *
+ * Events: update, reload, brightness, config
+ */
+public class PushChannel {
+    private static final String TAG = "PushChannel";
+    private static final int CONNECT_TIMEOUT = 10000;
+    // Read timeout; a healthy server has sent a heartbeat well before this
+    private static final int HEARTBEAT_TIMEOUT = 60000;
+    private static final long RETRY_BASE_DELAY = 2000;
+    private static final long RETRY_MAX_DELAY = 5 * 60 * 1000;
+    // Connection that lasted this long resets the backoff
+    private static final long STABLE_CONNECTION = 30000;
+
+    public interface Listener {
+        /** Connection established or lost */
+        void onPushConnected(boolean connected);
+
+        void onPushEvent(String event, String data);
+    }
+
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private final Backoff backoff = new Backoff(RETRY_BASE_DELAY, RETRY_MAX_DELAY);
+    private Session session;
+    private volatile String url;
+    private volatile String lastEventId;
+    private boolean running = false;
+    private boolean connected = false;
+
+    private final Runnable connectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    /**
+     * Worker and connection of one start()..stop() run
+     */
+    private static class Session {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        volatile HttpURLConnection connection;
+        volatile boolean closed = false;
+
+        /**
+         * The connection is set before closed is checked, and closed before
+         * the connection is read, so one side always sees the other
+         */
+        void close() {
+            closed = true;
+            executor.shutdownNow();
+            HttpURLConnection conn = connection;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    public PushChannel(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Event stream location; a change reconnects right away if running
+     */
+    public void setUrl(String url) {
+        if (url.equals(this.url)) {
+            return;
+        }
+        this.url = url;
+        lastEventId = null;
+        if (running) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * Open the stream and keep it open. Must be called on the UI thread.
+     */
+    public void start() {
+        if (running || url == null) {
+            return;
+        }
+        running = true;
+        session = new Session();
+        backoff.reset();
+        connect();
+    }
+
+    /**
+     * Close the stream and stop reconnecting
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(connectRunnable);
+        session.close();
+        session = null;
+        setConnected(false);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private void connect() {
+        final Session current = session;
+        if (!running || current == null) {
+            return;
+        }
+        final String streamUrl = url;
+        current.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    stream(streamUrl, current);
+                } catch (IOException e) {
+                    if (!current.closed) {
+                        Log.w(TAG, "Stream lost: " + e.getMessage());
+                    }
+                } finally {
+                    HttpURLConnection conn = current.connection;
+                    current.connection = null;
+                    if (conn != null) {
+                        conn.disconnect();
+                    }
+                }
+                final boolean stable = System.currentTimeMillis() - start >= STABLE_CONNECTION;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current != session) {
+                            return;
+                        }
+                        setConnected(false);
+                        Metrics.get().counter("push.disconnects").inc();
+                        if (stable) {
+                            backoff.reset();
+                        }
+                        handler.postDelayed(connectRunnable, backoff.nextDelay());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read events until the stream ends, fails or goes silent
+     */
+    private void stream(String streamUrl, final Session current) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(streamUrl).openConnection();
+        current.connection = conn;
+        if (current.closed) {
+            // Stopped before the connection was visible to close()
+            throw new IOException("Stopped");
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(HEARTBEAT_TIMEOUT);
+        conn.setRequestProperty("Accept", "text/event-stream");
+        conn.setRequestProperty("Cache-Control", "no-cache");
+        String resumeFrom = lastEventId;
+        if (resumeFrom != null) {
+            conn.setRequestProperty("Last-Event-ID", resumeFrom);
+        }
+        int code = conn.getResponseCode();
+        if (current.closed) {
+            throw new IOException("Stopped");
+        }
+        if (code != 200) {
+            throw new IOException("HTTP " + code + " for event stream");
+        }
+        String type = conn.getContentType();
+        if (type == null || !type.startsWith("text/event-stream")) {
+            throw new IOException("Not an event stream: " + type);
+        }
+
+        Metrics.get().counter("push.connects").inc();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (current == session) {
+                    setConnected(true);
+                }
+            }
+        });
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+        try {
+            String event = null;
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (current.closed) {
+                    throw new IOException("Stopped");
+                }
+                if (line.length() == 0) {
+                    // Blank line ends the event
+                    if (data.length() > 0 || event != null) {
+                        dispatch(event != null ? event : "message", data.toString(), current);
+                    }
+                    event = null;
+                    data.setLength(0);
+                    continue;
+                }
+                if (line.startsWith(":")) {
+                    // Comment, used as heartbeat
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                String field = colon == -1 ? line : line.substring(0, colon);
+                String value = colon == -1 ? "" : line.substring(colon + 1);
+                if (value.startsWith(" ")) {
+                    value = value.substring(1);
+                }
+                if (field.equals("event")) {
+                    event = value;
+                } else if (field.equals("data")) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(value);
+                } else if (field.equals("id")) {
+                    lastEventId = value;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void dispatch(final String event, final String data, final Session current) {
+        if (event.equals("ping")) {
+            return;
+        }
+        Metrics.get().counter("push.events").inc();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (current == session) {
+                    listener.onPushEvent(event, data);
+                }
+            }
+        });
+    }
+
+    private void setConnected(boolean value) {
+        if (connected != value) {
+            connected = value;
+            listener.onPushConnected(value);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.eo1.slideshow;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects a frozen slideshow and recovers without a person at the frame:
+ * - Page heartbeat: once a page has called EO1.heartbeat(), silence for
+ *   HEARTBEAT_TIMEOUT counts as hung JS or renderer. Pages should beat from
+ *   a requestAnimationFrame callback, so a stalled renderer stops the beats.
+ * - Page loads that neither show nor fail within LOAD_TIMEOUT
+ * - Frame windows from FrameMonitor that are mostly stalled frames
+ * - Main thread not running posted work for MAIN_STALL_TIMEOUT, checked
+ *   from a background thread
+ *
+ * Each incident escalates the recovery: reload the page, then recreate the
+ * WebViews, then restart the activity, then restart the process. The
+ * ladder persists across restarts and resets after HEALTHY_RESET without
+ * incidents. Incidents are kept with timings, page and slide, so content
+ * that causes stalls can be found.
+ */
+public class RenderWatchdog implements FrameMonitor.Listener {
+    private static final String TAG = "RenderWatchdog";
+    private static final String PREFS_NAME = "eo1_watchdog";
+    private static final String KEY_HISTORY = "history";
+    private static final String KEY_LEVEL = "level";
+    private static final String KEY_LAST_INCIDENT = "last_incident";
+    private static final int MAX_HISTORY = 50;
+
+    private static final long CHECK_INTERVAL = 10 * 1000;
+    private static final long HEARTBEAT_TIMEOUT = 60 * 1000;
+    private static final long LOAD_TIMEOUT = 2 * 60 * 1000;
+    private static final long MAIN_STALL_TIMEOUT = 30 * 1000;
+    private static final long MAIN_TICK_INTERVAL = 5 * 1000;
+    // Checks are suspended while a recovery action takes effect
+    private static final long GRACE_PERIOD = 2 * 60 * 1000;
+    private static final long HEALTHY_RESET = 30 * 60 * 1000; // 30 minutes
+    private static final long RESTART_DELAY = 2000;
+    // Consecutive bad frame windows (one a minute) before acting
+    private static final int BAD_WINDOWS = 3;
+
+    public static final int ACTION_RELOAD = 0;
+    public static final int ACTION_RECREATE_WEBVIEW = 1;
+    public static final int ACTION_RESTART_ACTIVITY = 2;
+    public static final int ACTION_RESTART_PROCESS = 3;
+
+    private static final String[] ACTIONS = {"reload", "recreate_webview", "restart_activity", "restart_process"};
+
+    /**
+     * Carries out recovery actions on the UI thread. Process restarts are
+     * done by the watchdog itself.
+     */
+    public interface Listener {
+        void onRecover(int action);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final SharedPreferences prefs;
+    private final Handler handler = new Handler();
+    private ScheduledExecutorService stallChecker;
+    private boolean running = false;
+
+    private int level;
+    private long lastIncident;
+    private long graceUntil;
+    private int badWindows;
+    private long loadStarted;
+    private String pageUrl;
+    private volatile String slideUrl;
+    private volatile long lastBeat;
+    // System.nanoTime(): stops in deep sleep like the main thread does
+    private volatile long lastMainTick;
+
+    // Recovery of the last incident, measured to the next sign of life
+    private long actionTime;
+    private boolean awaitingRecovery = false;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            checkPage();
+            handler.postDelayed(this, CHECK_INTERVAL);
+        }
+    };
+
+    private final Runnable mainTick = new Runnable() {
+        @Override
+        public void run() {
+            lastMainTick = System.nanoTime();
+        }
+    };
+
+    public RenderWatchdog(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.lastIncident = prefs.getLong(KEY_LAST_INCIDENT, 0);
+        this.level = prefs.getInt(KEY_LEVEL, 0);
+    }
+
+    /**
+     * Start watching. Must be called on the UI thread.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        graceUntil = SystemClock.elapsedRealtime() + GRACE_PERIOD;
+        lastMainTick = System.nanoTime();
+        handler.postDelayed(check, CHECK_INTERVAL);
+        stallChecker = Executors.newSingleThreadScheduledExecutor();
+        stallChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkMainThread();
+            }
+        }, MAIN_TICK_INTERVAL, MAIN_TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop watching, e.g. for the sleep window
+     */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(check);
+        handler.removeCallbacks(mainTick);
+        if (stallChecker != null) {
+            stallChecker.shutdownNow();
+            stallChecker = null;
+        }
+        lastBeat = 0;
+        loadStarted = 0;
+        badWindows = 0;
+    }
+
+    /**
+     * Page is alive. Called from the bridge thread.
+     */
+    public void heartbeat() {
+        lastBeat = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Slide currently on screen, recorded with incidents. Any thread.
+     */
+    public void setSlide(String url) {
+        slideUrl = url;
+    }
+
+    public void onLoadStarted(String url) {
+        pageUrl = url;
+        loadStarted = SystemClock.elapsedRealtime();
+        // A new page has to start beating again before it is held to it
+        lastBeat = 0;
+    }
+
+    /**
+     * The load finished, shown or failed; failures are retried elsewhere
+     */
+    public void onLoadEnded(boolean shown) {
+        loadStarted = 0;
+        if (shown) {
+            recovered();
+        }
+    }
+
+    /**
+     * Recorded incidents, oldest first, as a JSON array
+     */
+    public String getHistoryJson() {
+        return prefs.getString(KEY_HISTORY, "[]");
+    }
+
+    @Override
+    public void onFrameWindow(int frames, int stalled, long worstMs) {
+        if (!running || frames == 0) {
+            return;
+        }
+        // Most frames over 100ms: the UI is barely moving
+        if (stalled * 2 > frames) {
+            badWindows++;
+            if (badWindows >= BAD_WINDOWS && !inGrace()) {
+                incident("jank", "stalled_frames=" + stalled + "/" + frames + " worst_ms=" + worstMs);
+            }
+        } else {
+            badWindows = 0;
+        }
+    }
+
+    private void checkPage() {
+        long now = SystemClock.elapsedRealtime();
+        if (awaitingRecovery && lastBeat > actionTime) {
+            recovered();
+        }
+        if (inGrace()) {
+            return;
+        }
+        if (loadStarted > 0 && now - loadStarted > LOAD_TIMEOUT) {
+            incident("load_timeout", "load_ms=" + (now - loadStarted));
+        } else if (lastBeat > 0 && now - lastBeat > HEARTBEAT_TIMEOUT) {
+            incident("heartbeat", "silent_ms=" + (now - lastBeat));
+        } else if (level > 0 && System.currentTimeMillis() - lastIncident > HEALTHY_RESET) {
+            // Healthy for a while: start the ladder from the bottom again
+            Log.i(TAG, "Healthy again, escalation reset");
+            level = 0;
+            prefs.edit().putInt(KEY_LEVEL, 0).apply();
+        }
+    }
+
+    /**
+     * On the checker thread: post a tick and see whether earlier ones ran
+     */
+    private void checkMainThread() {
+        long stalled = (System.nanoTime() - lastMainTick) / 1000000L;
+        if (stalled > MAIN_STALL_TIMEOUT) {
+            Metrics.get().histogram("watchdog.main_stall_ms").record(stalled);
+            StringBuilder stack = new StringBuilder("stalled_ms=").append(stalled).append(" at");
+            StackTraceElement[] frames = Looper.getMainLooper().getThread().getStackTrace();
+            for (int i = 0; i < Math.min(5, frames.length); i++) {
+                stack.append(' ').append(frames[i]);
+            }
+            Log.e(TAG, "Main thread stalled: " + stack);
+            // The UI thread cannot act on anything now
+            record("main_thread_stall", stack.toString(), ACTION_RESTART_PROCESS);
+            restartProcess();
+            return;
+        }
+        handler.post(mainTick);
+    }
+
+    private boolean inGrace() {
+        return SystemClock.elapsedRealtime() < graceUntil;
+    }
+
+    private void incident(String reason, String detail) {
+        int action = Math.min(level, ACTION_RESTART_PROCESS);
+        Log.w(TAG, "Incident " + reason + " (" + detail + "), " + ACTIONS[action]);
+        level = action + 1;
+        record(reason, detail, action);
+
+        actionTime = SystemClock.elapsedRealtime();
+        awaitingRecovery = true;
+        graceUntil = actionTime + GRACE_PERIOD;
+        lastBeat = 0;
+        loadStarted = 0;
+        badWindows = 0;
+        if (action == ACTION_RESTART_PROCESS) {
+            restartProcess();
+        } else {
+            listener.onRecover(action);
+        }
+    }
+
+    /**
+     * The page showed or beat again after a recovery action
+     */
+    private void recovered() {
+        if (!awaitingRecovery) {
+            return;
+        }
+        awaitingRecovery = false;
+        long took = SystemClock.elapsedRealtime() - actionTime;
+        Metrics.get().histogram("watchdog.recovery_ms").record(took);
+        try {
+            JSONArray history = new JSONArray(getHistoryJson());
+            if (history.length() > 0) {
+                history.getJSONObject(history.length() - 1).put("recovered_ms", took);
+                prefs.edit().putString(KEY_HISTORY, history.toString()).apply();
+            }
+        } catch (JSONException e) {
+            prefs.edit().remove(KEY_HISTORY).apply();
+        }
+    }
+
+    private synchronized void record(String reason, String detail, int action) {
+        lastIncident = System.currentTimeMillis();
+        Metrics.get().counter("watchdog.incidents").inc();
+        Metrics.get().counter("watchdog." + reason).inc();
+        try {
+            JSONArray history = new JSONArray(getHistoryJson());
+            JSONObject entry = new JSONObject();
+            entry.put("time", System.currentTimeMillis());
+            entry.put("version", BuildConfig.VERSION_CODE);
+            entry.put("reason", reason);
+            entry.put("detail", detail);
+            entry.put("action", ACTIONS[action]);
+            entry.put("page", pageUrl);
+            entry.put("slide", slideUrl);
+            entry.put("uptime_ms", SystemClock.elapsedRealtime());
+
+            JSONArray updated = new JSONArray();
+            for (int i = Math.max(0, history.length() - (MAX_HISTORY - 1)); i < history.length(); i++) {
+                updated.put(history.get(i));
+            }
+            updated.put(entry);
+            // Synchronous: the process may be killed right after
+            prefs.edit()
+                .putString(KEY_HISTORY, updated.toString())
+                .putInt(KEY_LEVEL, Math.min(action + 1, ACTION_RESTART_PROCESS))
+                .putLong(KEY_LAST_INCIDENT, lastIncident)
+                .commit();
+        } catch (JSONException e) {
+            prefs.edit().remove(KEY_HISTORY).commit();
+        }
+    }
+
+    /**
+     * Kill the process and have AlarmManager start the activity again
+     */
+    private void restartProcess() {
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        PendingIntent pending = PendingIntent.getActivity(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + RESTART_DELAY, pending);
+        Process.killProcess(Process.myPid());
+    }
+}
@@ -0,0 +1,199 @@
+package com.eo1.slideshow;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Daily sleep window for the display:
+ * - Schedule stored in DeviceConfig as minutes of the day
+ * - Boundaries delivered by AlarmManager, so no timers run in between
+ * - Wake is announced WARMUP_MINUTES early, so rendering can resume and
+ *   the next slide is ready before the screen comes back on
+ * - Re-evaluated on start and when the clock or time zone changes
+ */
+public class SleepScheduler {
+    private static final String TAG = "SleepScheduler";
+    private static final String ACTION_ALARM = "com.eo1.slideshow.SLEEP_ALARM";
+    private static final int WARMUP_MINUTES = 2;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    public interface Listener {
+        /** Sleep window started: suspend rendering and release memory */
+        void onSleep();
+        /** Wake is near: resume rendering with the screen still dark */
+        void onPrepareWake();
+        /** Sleep window ended: screen back on */
+        void onWake();
+    }
+
+    private enum Phase { AWAKE, SLEEPING, WAKING }
+
+    private final Context context;
+    private final DeviceConfig deviceConfig;
+    private final Listener listener;
+    private final AlarmManager alarmManager;
+    private final PendingIntent alarmIntent;
+    private Phase phase = Phase.AWAKE;
+    private boolean started = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            evaluate();
+        }
+    };
+
+    public SleepScheduler(Context context, DeviceConfig deviceConfig, Listener listener) {
+        this.context = context;
+        this.deviceConfig = deviceConfig;
+        this.listener = listener;
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_ALARM).setPackage(context.getPackageName());
+        this.alarmIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Register for alarms and apply the current phase right away.
+     * Must be called on the UI thread.
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        IntentFilter filter = new IntentFilter(ACTION_ALARM);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        context.registerReceiver(receiver, filter);
+        evaluate();
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        alarmManager.cancel(alarmIntent);
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (Exception e) {
+            // Ignore if not registered
+        }
+    }
+
+    /**
+     * Store a new schedule and apply it. Must be called on the UI thread.
+     * @param startMinute minute of the day the display goes to sleep, -1 to disable
+     * @param endMinute minute of the day the display wakes up
+     */
+    public void setSchedule(int startMinute, int endMinute) {
+        deviceConfig.setSleepSchedule(startMinute, endMinute);
+        if (started) {
+            evaluate();
+        }
+    }
+
+    /**
+     * True while rendering is suspended (not during the warmup before wake)
+     */
+    public boolean isSleeping() {
+        return phase == Phase.SLEEPING;
+    }
+
+    public String getScheduleJson() {
+        return "{\"start\":" + deviceConfig.getSleepStart()
+            + ",\"end\":" + deviceConfig.getSleepEnd()
+            + ",\"phase\":\"" + phase.name().toLowerCase(Locale.US) + "\""
+            + "}";
+    }
+
+    private void evaluate() {
+        if (!started) {
+            return;
+        }
+        int start = deviceConfig.getSleepStart();
+        int end = deviceConfig.getSleepEnd();
+        Calendar now = Calendar.getInstance();
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        Phase next = phaseAt(minute, start, end);
+        if (phase == Phase.AWAKE && next == Phase.WAKING) {
+            // Already awake, nothing to warm up
+            next = Phase.AWAKE;
+        }
+        transition(next);
+
+        alarmManager.cancel(alarmIntent);
+        if (isEnabled(start, end)) {
+            int delay = minutesUntilNextBoundary(minute, start, end);
+            Calendar alarm = (Calendar) now.clone();
+            alarm.set(Calendar.SECOND, 0);
+            alarm.set(Calendar.MILLISECOND, 0);
+            alarm.add(Calendar.MINUTE, delay);
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, alarm.getTimeInMillis(), alarmIntent);
+        }
+    }
+
+    private void transition(Phase next) {
+        if (next == phase) {
+            return;
+        }
+        Log.i(TAG, phase + " -> " + next);
+        Phase previous = phase;
+        phase = next;
+        if (next == Phase.SLEEPING) {
+            if (previous == Phase.AWAKE) {
+                Metrics.get().counter("sleep.entered").inc();
+            }
+            listener.onSleep();
+        } else {
+            if (previous == Phase.SLEEPING) {
+                listener.onPrepareWake();
+            }
+            if (next == Phase.AWAKE) {
+                listener.onWake();
+            }
+        }
+    }
+
+    private static boolean isEnabled(int start, int end) {
+        return start >= 0 && end >= 0 && start != end;
+    }
+
+    private static Phase phaseAt(int minute, int start, int end) {
+        if (!isEnabled(start, end)) {
+            return Phase.AWAKE;
+        }
+        int sinceStart = (minute - start + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        int length = (end - start + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        if (sinceStart >= length) {
+            return Phase.AWAKE;
+        }
+        return length - sinceStart <= WARMUP_MINUTES ? Phase.WAKING : Phase.SLEEPING;
+    }
+
+    /**
+     * Minutes from now to the next sleep, warmup or wake boundary, at least 1
+     */
+    private static int minutesUntilNextBoundary(int minute, int start, int end) {
+        int warmup = (end - WARMUP_MINUTES + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+        int[] boundaries = { start, warmup, end };
+        int best = MINUTES_PER_DAY;
+        for (int boundary : boundaries) {
+            int delta = (boundary - minute + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+            if (delta == 0) {
+                delta = MINUTES_PER_DAY;
+            }
+            best = Math.min(best, delta);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,108 @@
+package com.eo1.slideshow;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Decodes slide images straight to the display resolution:
+ * - Power-of-two subsampling (inSampleSize) while decoding
+ * - Density scaling for the remaining factor, so the result fits exactly
+ * - Pixel buffers taken from a BitmapPool (inBitmap)
+ */
+public class SlideDecoder {
+    private static final String TAG = "SlideDecoder";
+
+    private final BitmapPool pool;
+    private final Metrics.Histogram decodeTimes = Metrics.get().histogram("decode_ms");
+    private volatile int targetWidth;
+    private volatile int targetHeight;
+
+    public SlideDecoder(BitmapPool pool, int targetWidth, int targetHeight) {
+        this.pool = pool;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+    }
+
+    public void setTargetSize(int width, int height) {
+        this.targetWidth = width;
+        this.targetHeight = height;
+    }
+
+    /**
+     * Decode an image file to fit inside the target size
+     * @return decoded bitmap, or null if the file is not a readable image
+     */
+    public Bitmap decode(File file) {
+        long start = SystemClock.elapsedRealtime();
+        Bitmap bitmap = decodeScaled(file);
+        if (bitmap != null) {
+            decodeTimes.record(SystemClock.elapsedRealtime() - start);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeScaled(File file) {
+        String path = file.getAbsolutePath();
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        float scale = Math.min(1f, Math.min(
+            (float) targetWidth / width, (float) targetHeight / height
+        ));
+        int outWidth = Math.max(1, Math.round(width * scale));
+        int outHeight = Math.max(1, Math.round(height * scale));
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSizeFor(width, height, outWidth, outHeight);
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        opts.inMutable = true;
+
+        int sampledWidth = width / opts.inSampleSize;
+        if (sampledWidth > outWidth) {
+            opts.inScaled = true;
+            opts.inDensity = sampledWidth;
+            opts.inTargetDensity = outWidth;
+        }
+
+        Bitmap reuse = pool.get(outWidth, outHeight, opts.inPreferredConfig);
+        opts.inBitmap = reuse;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, opts);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap rejected by the decoder, retry with a fresh one
+            Log.w(TAG, "Bitmap reuse failed for " + file.getName());
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, opts);
+        } finally {
+            // Failed, or decoded elsewhere: the pooled buffer is still good
+            if (reuse != null && bitmap != reuse) {
+                pool.put(reuse);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Largest power of two that keeps the decoded image at least as large
+     * as the requested size
+     */
+    static int sampleSizeFor(int width, int height, int reqWidth, int reqHeight) {
+        int sample = 1;
+        while (width / (sample * 2) >= reqWidth && height / (sample * 2) >= reqHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,209 @@
+package com.eo1.slideshow;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Look-ahead prefetch of upcoming slides into the AssetCache:
+ * - Page passes the next slide URLs in display order
+ * - Bounded number of concurrent downloads, nearest slide first
+ * - Shared bandwidth cap across all prefetch downloads
+ * - Counters to show whether prefetch keeps up with the slideshow
+ */
+public class SlidePrefetcher {
+    private static final String TAG = "SlidePrefetcher";
+    private static final int MAX_CONCURRENT = 2;
+
+    private final AssetCache cache;
+    private final BandwidthLimiter limiter;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> queued = new HashSet<String>();
+    private final Set<String> inFlight = new HashSet<String>();
+    private volatile int depth;
+    // Cap on depth under memory pressure, Integer.MAX_VALUE when none
+    private volatile int depthLimit = Integer.MAX_VALUE;
+    private long generation;
+    private List<String> lastUrls;
+
+    // Counters
+    private long requested;
+    private long fetched;
+    private long alreadyCached;
+    private long failed;
+    private long superseded;
+    private long bytesFetched;
+
+    public SlidePrefetcher(AssetCache cache, int depth, int maxKbps) {
+        this.cache = cache;
+        this.depth = depth;
+        this.limiter = new BandwidthLimiter(maxKbps * 1024L);
+        this.executor = new ThreadPoolExecutor(
+            MAX_CONCURRENT, MAX_CONCURRENT, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Update prefetch depth and bandwidth cap
+     * @param depth number of upcoming slides to fetch ahead
+     * @param maxKbps bandwidth cap in kilobytes per second, 0 for unlimited
+     */
+    public void configure(int depth, int maxKbps) {
+        this.depth = depth;
+        limiter.setRate(maxKbps * 1024L);
+    }
+
+    /**
+     * Temporarily cap the configured depth, e.g. under memory pressure
+     * @param limit maximum depth, Integer.MAX_VALUE to lift the cap
+     */
+    public void setDepthLimit(int limit) {
+        this.depthLimit = limit;
+    }
+
+    /**
+     * Replace the prefetch queue with the given upcoming slides.
+     * Downloads already running are left to finish. Called from the page,
+     * so the cache is not consulted here; each task checks it first.
+     * @param urls upcoming slide URLs, nearest first
+     */
+    public synchronized void prefetch(List<String> urls) {
+        lastUrls = urls;
+        generation++;
+        superseded += executor.getQueue().size();
+        executor.getQueue().clear();
+        queued.clear();
+
+        int limit = Math.min(Math.min(depth, depthLimit), urls.size());
+        for (int i = 0; i < limit; i++) {
+            String url = urls.get(i);
+            if (!AssetCache.isCacheable(url) || inFlight.contains(url) || !queued.add(url)) {
+                continue;
+            }
+            requested++;
+            executor.execute(new PrefetchTask(url, generation, i));
+        }
+    }
+
+    /**
+     * Drop queued downloads, e.g. before sleep. Running downloads finish.
+     */
+    public synchronized void cancelAll() {
+        superseded += executor.getQueue().size();
+        executor.getQueue().clear();
+        queued.clear();
+    }
+
+    /**
+     * Bandwidth cap, for other background downloads to share
+     */
+    public BandwidthLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Queue the most recently requested slides again, e.g. before wake
+     */
+    public synchronized void warm() {
+        if (lastUrls != null) {
+            prefetch(lastUrls);
+        }
+    }
+
+    /**
+     * Prefetch counters as JSON for the page
+     */
+    public synchronized String getStatsJson() {
+        return "{\"requested\":" + requested
+            + ",\"fetched\":" + fetched
+            + ",\"already_cached\":" + alreadyCached
+            + ",\"failed\":" + failed
+            + ",\"superseded\":" + superseded
+            + ",\"bytes_fetched\":" + bytesFetched
+            + ",\"queued\":" + executor.getQueue().size()
+            + ",\"active\":" + executor.getActiveCount()
+            + ",\"cache_hits\":" + cache.getHitCount()
+            + ",\"cache_misses\":" + cache.getMissCount()
+            + ",\"depth\":" + depth
+            + ",\"depth_limit\":" + (depthLimit == Integer.MAX_VALUE ? -1 : depthLimit)
+            + ",\"max_kbps\":" + (limiter.getRate() / 1024)
+            + "}";
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private synchronized boolean onTaskStarted(String url) {
+        if (!queued.remove(url)) {
+            return false;
+        }
+        inFlight.add(url);
+        return true;
+    }
+
+    private void onTaskFinished(String url, AssetCache.Entry entry, boolean cached, boolean error) {
+        synchronized (this) {
+            inFlight.remove(url);
+            if (cached) {
+                alreadyCached++;
+            } else if (entry != null) {
+                fetched++;
+                bytesFetched += entry.size;
+            } else if (error) {
+                failed++;
+            }
+        }
+    }
+
+    /**
+     * One queued download. Earlier slides of the latest batch run first.
+     */
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+        final String url;
+        final long batch;
+        final int position;
+
+        PrefetchTask(String url, long batch, int position) {
+            this.url = url;
+            this.batch = batch;
+            this.position = position;
+        }
+
+        @Override
+        public void run() {
+            if (!onTaskStarted(url)) {
+                return;
+            }
+            AssetCache.Entry entry = null;
+            boolean cached = cache.contains(url);
+            boolean error = false;
+            try {
+                if (!cached) {
+                    entry = cache.fetch(url, limiter);
+                    error = entry == null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Prefetch failed for " + url + ": " + e.getMessage());
+                error = true;
+            }
+            onTaskFinished(url, entry, cached, error);
+        }
+
+        @Override
+        public int compareTo(PrefetchTask other) {
+            if (batch != other.batch) {
+                return batch > other.batch ? -1 : 1;
+            }
+            return position - other.position;
+        }
+    }
+}
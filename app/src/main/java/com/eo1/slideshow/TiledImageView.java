@@ -0,0 +1,497 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Slow pan and zoom ("Ken Burns") over images too large to decode whole:
+ * - BitmapRegionDecoder decodes only the tiles under the moving viewport,
+ *   at the power-of-two sample size the current zoom needs
+ * - Recently used tiles kept in a small LRU; evicted tiles hand their
+ *   pixel buffers back for the next decode (inBitmap)
+ * - A low-resolution base layer of the whole image fills in while tiles
+ *   are decoding, so the frame never shows holes
+ * - Memory bounded by MAX_TILES, independent of the image size
+ *
+ * All public methods must be called on the UI thread.
+ */
+public class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+    private static final int TILE_SIZE = 512;
+    private static final int MAX_TILES = 48;
+    // Zoom over the slide for images that are not panoramas
+    private static final float ZOOM = 1.2f;
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+
+    public static final String STATE_LOADING = "loading";
+    public static final String STATE_SHOWING = "showing";
+    public static final String STATE_ENDED = "ended";
+    public static final String STATE_ERROR = "error";
+    public static final String STATE_STOPPED = "stopped";
+
+    public interface Listener {
+        void onLargeImageState(String url, String state);
+    }
+
+    /**
+     * Source of local files for image URLs; may download. Called on a
+     * background thread.
+     */
+    public interface FileSource {
+        File getFile(String url) throws IOException;
+    }
+
+    private static class Tile {
+        final Bitmap bitmap;
+        // Decoded content, which may be smaller than the bitmap at image edges
+        final int width;
+        final int height;
+
+        Tile(Bitmap bitmap, int width, int height) {
+            this.bitmap = bitmap;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final BitmapPool tilePool = new BitmapPool(
+        (long) MAX_TILES / 4 * TILE_SIZE * TILE_SIZE * BitmapPool.bytesPerPixel(CONFIG)
+    );
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(MAX_TILES, 0.75f, true);
+    private final Set<Long> pending = new HashSet<Long>();
+    // Tiles the current frame wants, read by the decode thread to skip stale work
+    private volatile Set<Long> wanted = new HashSet<Long>();
+    private final Metrics.Histogram tileTimes = Metrics.get().histogram("tiles.decode_ms");
+    private final Metrics.Counter tilesDecoded = Metrics.get().counter("tiles.decoded");
+
+    private FileSource files;
+    private Listener listener;
+    private BitmapRegionDecoder region;
+    private Bitmap base;
+    private String url;
+    private volatile int generation;
+    private int imageWidth;
+    private int imageHeight;
+    private long startTime;
+    private long duration;
+    private boolean ended;
+    private final RectF from = new RectF();
+    private final RectF to = new RectF();
+    private final RectF viewport = new RectF();
+    private final Rect src = new Rect();
+    private final RectF dst = new RectF();
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public void setFileSource(FileSource files) {
+        this.files = files;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Pan and zoom over an image for the given time, then hold the last frame
+     */
+    public void show(final String url, long durationMs) {
+        stop();
+        this.url = url;
+        this.duration = Math.max(1000, durationMs);
+        final int token = ++generation;
+        setVisibility(View.VISIBLE);
+        notifyState(url, STATE_LOADING);
+        Metrics.get().counter("tiles.images").inc();
+
+        decoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                BitmapRegionDecoder opened = null;
+                Bitmap overview = null;
+                try {
+                    File file = files.getFile(url);
+                    if (file == null) {
+                        throw new IOException("Not an image");
+                    }
+                    opened = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+                    overview = decodeOverview(opened);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot open " + url + ": " + e.getMessage());
+                } catch (OutOfMemoryError e) {
+                    Log.w(TAG, "Out of memory opening " + url);
+                }
+                final BitmapRegionDecoder result = opened;
+                final Bitmap resultBase = overview;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onOpened(token, result, resultBase);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop, free all tiles and hide the view
+     */
+    public void stop() {
+        generation++;
+        boolean active = url != null;
+        String stopped = url;
+        url = null;
+        releaseImage();
+        setVisibility(View.GONE);
+        if (active) {
+            notifyState(stopped, STATE_STOPPED);
+        }
+        ended = false;
+    }
+
+    public boolean isShowing() {
+        return url != null;
+    }
+
+    /**
+     * Drop cached tiles and spare buffers; visible ones are decoded again
+     */
+    public void trimMemory() {
+        tilePool.clear();
+        if (!isShowing()) {
+            return;
+        }
+        Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Tile> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().bitmap.recycle();
+                it.remove();
+            }
+        }
+    }
+
+    public void shutdown() {
+        stop();
+        decoder.shutdownNow();
+    }
+
+    private void onOpened(int token, BitmapRegionDecoder opened, Bitmap overview) {
+        if (token != generation) {
+            // Superseded while opening
+            if (opened != null) opened.recycle();
+            if (overview != null) overview.recycle();
+            return;
+        }
+        if (opened == null || overview == null) {
+            if (opened != null) opened.recycle();
+            String failed = url;
+            url = null;
+            setVisibility(View.GONE);
+            Metrics.get().counter("tiles.errors").inc();
+            notifyState(failed, STATE_ERROR);
+            return;
+        }
+        region = opened;
+        base = overview;
+        imageWidth = opened.getWidth();
+        imageHeight = opened.getHeight();
+        startTime = 0;
+        ended = false;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (region == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (startTime == 0) {
+            // Path depends on the view size, known from the first draw
+            planPath();
+            startTime = now;
+            notifyState(url, STATE_SHOWING);
+        }
+        float t = Math.min(1f, (float) (now - startTime) / duration);
+        float eased = t * t * (3 - 2 * t);
+        viewport.set(
+            from.left + (to.left - from.left) * eased,
+            from.top + (to.top - from.top) * eased,
+            from.right + (to.right - from.right) * eased,
+            from.bottom + (to.bottom - from.bottom) * eased
+        );
+
+        float scale = getWidth() / viewport.width();
+        int sample = 1;
+        while (sample * 2 <= 1f / scale) {
+            sample *= 2;
+        }
+
+        // Base layer first, then whatever tiles are ready on top
+        src.set(0, 0, base.getWidth(), base.getHeight());
+        mapToScreen(0, 0, imageWidth, imageHeight, scale, dst);
+        canvas.drawBitmap(base, src, dst, paint);
+        drawTiles(canvas, sample, scale);
+
+        if (t < 1f) {
+            postInvalidateOnAnimation();
+        } else if (!ended) {
+            ended = true;
+            notifyState(url, STATE_ENDED);
+        }
+    }
+
+    private void drawTiles(Canvas canvas, int sample, float scale) {
+        int span = TILE_SIZE * sample;
+        // One tile of margin, so tiles entering the view are decoded ahead
+        int firstCol = Math.max(0, (int) (viewport.left / span) - 1);
+        int lastCol = Math.min((imageWidth - 1) / span, (int) (viewport.right / span) + 1);
+        int firstRow = Math.max(0, (int) (viewport.top / span) - 1);
+        int lastRow = Math.min((imageHeight - 1) / span, (int) (viewport.bottom / span) + 1);
+
+        Set<Long> now = new HashSet<Long>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                long key = tileKey(sample, col, row);
+                now.add(key);
+                Tile tile = tiles.get(key);
+                if (tile == null) {
+                    requestTile(key, sample, col, row);
+                    continue;
+                }
+                int left = col * span;
+                int top = row * span;
+                mapToScreen(left, top, left + tile.width * sample, top + tile.height * sample, scale, dst);
+                if (dst.right < 0 || dst.bottom < 0 || dst.left > getWidth() || dst.top > getHeight()) {
+                    continue;
+                }
+                src.set(0, 0, tile.width, tile.height);
+                canvas.drawBitmap(tile.bitmap, src, dst, paint);
+            }
+        }
+        wanted = now;
+    }
+
+    private void requestTile(final long key, final int sample, final int col, final int row) {
+        if (!pending.add(key)) {
+            return;
+        }
+        final int token = generation;
+        final BitmapRegionDecoder source = region;
+        final Bitmap reuse = tilePool.get(TILE_SIZE, TILE_SIZE, CONFIG);
+        decoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                Tile tile = null;
+                if (token == generation && (wanted.contains(key) || wanted.isEmpty())) {
+                    tile = decodeTile(source, reuse, sample, col, row);
+                }
+                final Tile result = tile;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(token, key, result, reuse);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onTileDecoded(int token, long key, Tile tile, Bitmap reuse) {
+        if (token != generation) {
+            if (tile != null) tile.bitmap.recycle();
+            else if (reuse != null) reuse.recycle();
+            return;
+        }
+        pending.remove(key);
+        if (tile == null) {
+            // Skipped as stale or failed; its buffer is still good
+            tilePool.put(reuse);
+            return;
+        }
+        if (reuse != null && tile.bitmap != reuse) {
+            tilePool.put(reuse);
+        }
+        tiles.put(key, tile);
+        while (tiles.size() > MAX_TILES) {
+            Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+            Tile eldest = it.next().getValue();
+            it.remove();
+            tilePool.put(eldest.bitmap);
+        }
+        invalidate();
+    }
+
+    /**
+     * Decode one tile, into the given buffer when the decoder accepts it.
+     * Runs on the decode thread.
+     */
+    private Tile decodeTile(BitmapRegionDecoder source, Bitmap reuse, int sample, int col, int row) {
+        int span = TILE_SIZE * sample;
+        Rect rect = new Rect(col * span, row * span,
+            Math.min((col + 1) * span, source.getWidth()), Math.min((row + 1) * span, source.getHeight()));
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = CONFIG;
+        opts.inBitmap = reuse;
+        long start = SystemClock.elapsedRealtime();
+        Bitmap bitmap;
+        try {
+            bitmap = source.decodeRegion(rect, opts);
+        } catch (IllegalArgumentException e) {
+            // Buffer rejected, decode into a fresh one
+            opts.inBitmap = null;
+            bitmap = decodeRegionQuietly(source, rect, opts);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        tileTimes.record(SystemClock.elapsedRealtime() - start);
+        tilesDecoded.inc();
+        return new Tile(bitmap,
+            Math.min(bitmap.getWidth(), (rect.width() + sample - 1) / sample),
+            Math.min(bitmap.getHeight(), (rect.height() + sample - 1) / sample));
+    }
+
+    private static Bitmap decodeRegionQuietly(BitmapRegionDecoder source, Rect rect, BitmapFactory.Options opts) {
+        try {
+            return source.decodeRegion(rect, opts);
+        } catch (RuntimeException e) {
+            return null;
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whole image at about half the display resolution, shown under the tiles
+     */
+    private Bitmap decodeOverview(BitmapRegionDecoder source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int target = Math.max(1, Math.max(getResources().getDisplayMetrics().widthPixels,
+            getResources().getDisplayMetrics().heightPixels) / 2);
+        int sample = 1;
+        while (Math.max(width, height) / (sample * 2) >= target) {
+            sample *= 2;
+        }
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = CONFIG;
+        return decodeRegionQuietly(source, new Rect(0, 0, width, height), opts);
+    }
+
+    /**
+     * Start and end viewports: panoramas pan end to end at full height,
+     * other images zoom in slowly while drifting across
+     */
+    private void planPath() {
+        float aspect = (float) getWidth() / getHeight();
+        float coverWidth;
+        float coverHeight;
+        if ((float) imageWidth / imageHeight > aspect) {
+            coverHeight = imageHeight;
+            coverWidth = imageHeight * aspect;
+        } else {
+            coverWidth = imageWidth;
+            coverHeight = imageWidth / aspect;
+        }
+        boolean reverse = Math.random() < 0.5;
+        boolean panorama = imageWidth > 2 * coverWidth || imageHeight > 2 * coverHeight;
+        float endWidth = panorama ? coverWidth : coverWidth / ZOOM;
+        float endHeight = panorama ? coverHeight : coverHeight / ZOOM;
+
+        placeAtEnd(from, coverWidth, coverHeight, reverse);
+        placeAtEnd(to, endWidth, endHeight, !reverse);
+    }
+
+    /**
+     * Place a viewport against one end of the image's long axis, centred on
+     * the other
+     */
+    private void placeAtEnd(RectF rect, float width, float height, boolean far) {
+        float left;
+        float top;
+        if ((float) imageWidth / imageHeight > (float) getWidth() / getHeight()) {
+            left = far ? imageWidth - width : 0;
+            top = (imageHeight - height) / 2;
+        } else {
+            left = (imageWidth - width) / 2;
+            top = far ? imageHeight - height : 0;
+        }
+        rect.set(left, top, left + width, top + height);
+    }
+
+    private void mapToScreen(float left, float top, float right, float bottom, float scale, RectF out) {
+        out.set((left - viewport.left) * scale, (top - viewport.top) * scale,
+            (right - viewport.left) * scale, (bottom - viewport.top) * scale);
+    }
+
+    private static long tileKey(int sample, int col, int row) {
+        return ((long) sample << 48) | ((long) row << 24) | col;
+    }
+
+    private void releaseImage() {
+        for (Tile tile : tiles.values()) {
+            tile.bitmap.recycle();
+        }
+        tiles.clear();
+        pending.clear();
+        wanted = new HashSet<Long>();
+        tilePool.clear();
+        if (base != null) {
+            base.recycle();
+            base = null;
+        }
+        if (region != null) {
+            // Decodes still queued for it see the new generation and drop out
+            final BitmapRegionDecoder old = region;
+            region = null;
+            decoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    old.recycle();
+                }
+            });
+        }
+    }
+
+    private void notifyState(String url, String state) {
+        if (listener != null && url != null) {
+            listener.onLargeImageState(url, state);
+        }
+    }
+}
@@ -1,42 +1,75 @@
 package com.eo1.slideshow;
 
-import android.app.DownloadManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.database.Cursor;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.security.MessageDigest;
 
 /**
  * Handles automatic app updates:
- * - Periodic version checks against server
- * - APK download via DownloadManager
+ * - Periodic, jittered version checks against server (ETag / 304)
+ * - Exponential backoff when checks fail
+ * - Resumable APK download, or delta patch against the installed APK
+ * - SHA-256 verification before anything is installed
  * - Installation trigger via system UI
  */
 public class UpdateManager {
     private static final String TAG = "UpdateManager";
-    private static final String SERVER_BASE = "http://93.127.216.80:3000";
     private static final long CHECK_INTERVAL = 4 * 60 * 60 * 1000; // 4 hours
+    // Safety net only while the push channel announces updates
+    private static final long PUSH_CHECK_INTERVAL = 24 * 60 * 60 * 1000; // 24 hours
+    private static final double CHECK_JITTER = 0.1; // +/- 10%
+    private static final long INITIAL_DELAY = 30000;
+    private static final long INITIAL_SPREAD = 10 * 60 * 1000; // 10 minutes
+    // Pushed update events reach the whole fleet at once
+    private static final long PUSH_SPREAD = 5 * 60 * 1000; // 5 minutes
+    private static final long RETRY_BASE_DELAY = 60000;
+    private static final String APK_NAME = "eo1-update.apk";
+    private static final String PREFS_NAME = "eo1_update";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_ETAG_VERSION = "etag_version";
 
     private Context context;
     private Handler handler;
     private Runnable periodicCheck;
-    private long downloadId = -1;
-    private BroadcastReceiver downloadReceiver;
+    private boolean periodicEnabled = false;
+    private CheckUpdateTask checkTask;
+    private DownloadTask downloadTask;
+    private SharedPreferences prefs;
+    private Backoff backoff;
+    private final OriginSelector origins;
+    private boolean pushConnected = false;
+    private long nextCheckAt;
+
+    private final Runnable pushedCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkForUpdate();
+        }
+    };
 
-    public UpdateManager(Context context) {
+    public UpdateManager(Context context, OriginSelector origins) {
         this.context = context;
+        this.origins = origins;
         this.handler = new Handler();
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.backoff = new Backoff(RETRY_BASE_DELAY, CHECK_INTERVAL);
     }
 
     /**
@@ -47,114 +80,163 @@ public class UpdateManager {
             @Override
             public void run() {
                 checkForUpdate();
-                handler.postDelayed(this, CHECK_INTERVAL);
             }
         };
 
-        // Initial check after 30 seconds (allow app to fully start)
-        handler.postDelayed(periodicCheck, 30000);
+        // Initial check after 30 seconds (allow app to fully start), spread
+        // so a fleet booting together after a power cut does not check together
+        periodicEnabled = true;
+        scheduleNextCheck(INITIAL_DELAY + (long) (Math.random() * INITIAL_SPREAD));
     }
 
     /**
      * Stop periodic update checks
      */
     public void stopPeriodicChecks() {
+        periodicEnabled = false;
         if (periodicCheck != null) {
             handler.removeCallbacks(periodicCheck);
         }
+        handler.removeCallbacks(pushedCheck);
+    }
+
+    /**
+     * Relax periodic checks while the push channel is connected; updates
+     * then arrive as events
+     */
+    public void setPushConnected(boolean connected) {
+        if (pushConnected && !connected) {
+            // The next check may be a day out; without push, hold to the
+            // normal interval again
+            long interval = Backoff.jitter(CHECK_INTERVAL, CHECK_JITTER);
+            if (nextCheckAt - SystemClock.elapsedRealtime() > interval) {
+                scheduleNextCheck(interval);
+            }
+        }
+        pushConnected = connected;
+    }
+
+    /**
+     * Check after a random delay of up to PUSH_SPREAD, for update events
+     * the server pushes to every frame at the same moment
+     */
+    public void checkSoon() {
+        handler.removeCallbacks(pushedCheck);
+        handler.postDelayed(pushedCheck, (long) (Math.random() * PUSH_SPREAD));
+    }
+
+    private void scheduleNextCheck(long delay) {
+        if (!periodicEnabled || periodicCheck == null) {
+            return;
+        }
+        handler.removeCallbacks(periodicCheck);
+        handler.postDelayed(periodicCheck, delay);
+        nextCheckAt = SystemClock.elapsedRealtime() + delay;
     }
 
     /**
      * Check server for available update
      */
     public void checkForUpdate() {
+        if (checkTask != null && checkTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return;
+        }
         Log.i(TAG, "Checking for updates...");
-        new CheckUpdateTask().execute();
+        Metrics.get().counter("update.checks").inc();
+        checkTask = new CheckUpdateTask();
+        checkTask.execute();
     }
 
     /**
-     * Simple JSON parser for update response (no external dependencies)
+     * Remember the last response, reused when the server answers 304
      */
-    private static class UpdateInfo {
-        boolean updateAvailable;
-        String downloadUrl;
-        int latestVersion;
-
-        static UpdateInfo parse(String json) {
-            UpdateInfo info = new UpdateInfo();
-            info.updateAvailable = json.contains("\"update_available\":true");
-
-            // Extract download_url
-            int urlStart = json.indexOf("\"download_url\":\"");
-            if (urlStart != -1) {
-                urlStart += 16;
-                int urlEnd = json.indexOf("\"", urlStart);
-                if (urlEnd != -1) {
-                    info.downloadUrl = json.substring(urlStart, urlEnd);
-                }
-            }
-
-            // Extract latest_version
-            int verStart = json.indexOf("\"latest_version\":");
-            if (verStart != -1) {
-                verStart += 17;
-                int verEnd = json.indexOf(",", verStart);
-                if (verEnd == -1) verEnd = json.indexOf("}", verStart);
-                if (verEnd != -1) {
-                    try {
-                        info.latestVersion = Integer.parseInt(
-                            json.substring(verStart, verEnd).trim()
-                        );
-                    } catch (NumberFormatException e) {
-                        info.latestVersion = 0;
-                    }
-                }
-            }
+    private static void saveInfo(UpdateInfo info, SharedPreferences.Editor editor) {
+        editor.putBoolean("update_available", info.updateAvailable)
+            .putString("download_url", info.downloadUrl)
+            .putInt("latest_version", info.latestVersion)
+            .putString("sha256", info.sha256)
+            .putString("patch_url", info.patchUrl)
+            .putString("patch_sha256", info.patchSha256)
+            .putInt("patch_from_version", info.patchFromVersion);
+    }
 
-            return info;
-        }
+    private static UpdateInfo loadInfo(SharedPreferences prefs) {
+        UpdateInfo info = new UpdateInfo();
+        info.updateAvailable = prefs.getBoolean("update_available", false);
+        info.downloadUrl = prefs.getString("download_url", null);
+        info.latestVersion = prefs.getInt("latest_version", 0);
+        info.sha256 = prefs.getString("sha256", null);
+        info.patchUrl = prefs.getString("patch_url", null);
+        info.patchSha256 = prefs.getString("patch_sha256", null);
+        info.patchFromVersion = prefs.getInt("patch_from_version", 0);
+        return info;
     }
 
     /**
-     * AsyncTask to check for updates in background
+     * AsyncTask to check for updates in background.
+     * Sends the last ETag so an unchanged answer costs a bodyless 304.
      */
     private class CheckUpdateTask extends AsyncTask<Void, Void, UpdateInfo> {
         @Override
         protected UpdateInfo doInBackground(Void... params) {
-            HttpURLConnection conn = null;
+            HttpClient.Call call = null;
+            String origin = origins.getOrigin();
             try {
                 int currentVersion = BuildConfig.VERSION_CODE;
-                URL url = new URL(SERVER_BASE + "/api/app/version?v=" + currentVersion);
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(10000);
-                conn.setReadTimeout(10000);
-
-                if (conn.getResponseCode() == 200) {
-                    BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream())
-                    );
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    reader.close();
-
-                    return UpdateInfo.parse(response.toString());
+                call = HttpClient.get().openBackground(origin + "/api/app/version?v=" + currentVersion, 10000);
+                HttpURLConnection conn = call.connection();
+
+                // ETag is only valid for the version it was issued to
+                String etag = prefs.getString(KEY_ETAG, null);
+                if (etag != null && prefs.getInt(KEY_ETAG_VERSION, 0) == currentVersion) {
+                    conn.setRequestProperty("If-None-Match", etag);
+                }
+
+                int code = call.execute();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.i(TAG, "Version info unchanged");
+                    Metrics.get().counter("update.not_modified").inc();
+                    return loadInfo(prefs);
                 }
+                if (code == 200) {
+                    UpdateInfo info = UpdateInfo.parse(new BufferedReader(
+                        new InputStreamReader(call.body(), "UTF-8")
+                    ));
+                    SharedPreferences.Editor editor = prefs.edit();
+                    saveInfo(info, editor);
+                    editor.putString(KEY_ETAG, call.header("ETag"))
+                        .putInt(KEY_ETAG_VERSION, currentVersion)
+                        .apply();
+                    return info;
+                }
+                Log.e(TAG, "Update check failed with status: " + code);
+            } catch (IOException e) {
+                Log.e(TAG, "Update check failed", e);
+                // Unreachable origin: fail over for the retry
+                origins.reportFailure(origin);
             } catch (Exception e) {
                 Log.e(TAG, "Update check failed", e);
             } finally {
-                if (conn != null) conn.disconnect();
+                if (call != null) call.close();
             }
             return null;
         }
 
         @Override
         protected void onPostExecute(UpdateInfo info) {
-            if (info != null && info.updateAvailable && info.downloadUrl != null) {
+            if (info == null) {
+                Metrics.get().counter("update.check_failures").inc();
+                long delay = backoff.nextDelay();
+                Log.i(TAG, "Retrying update check in " + (delay / 1000) + "s");
+                scheduleNextCheck(delay);
+                return;
+            }
+
+            backoff.reset();
+            scheduleNextCheck(Backoff.jitter(pushConnected ? PUSH_CHECK_INTERVAL : CHECK_INTERVAL, CHECK_JITTER));
+            if (info.updateAvailable && info.downloadUrl != null) {
                 Log.i(TAG, "Update available: v" + info.latestVersion);
-                downloadUpdate(SERVER_BASE + info.downloadUrl);
+                downloadUpdate(info);
             } else {
                 Log.i(TAG, "No update available");
             }
@@ -162,139 +244,254 @@ public class UpdateManager {
     }
 
     /**
-     * Download APK using DownloadManager
+     * Download and verify the update in the background, then install it
      */
-    private void downloadUpdate(String apkUrl) {
-        Log.i(TAG, "Downloading update from: " + apkUrl);
-
-        // Clean up any previous download
-        File apkFile = getApkFile();
-        if (apkFile.exists()) {
-            apkFile.delete();
+    private void downloadUpdate(UpdateInfo info) {
+        if (downloadTask != null && downloadTask.getStatus() != AsyncTask.Status.FINISHED) {
+            Log.i(TAG, "Update download already in progress");
+            return;
         }
+        Metrics.get().counter("update.downloads").inc();
+        downloadTask = new DownloadTask();
+        downloadTask.execute(info);
+    }
 
-        try {
-            DownloadManager dm = (DownloadManager) context.getSystemService(
-                Context.DOWNLOAD_SERVICE
-            );
-
-            DownloadManager.Request request = new DownloadManager.Request(
-                Uri.parse(apkUrl)
-            );
-
-            request.setTitle("EO1 Update");
-            request.setDescription("Downloading app update...");
-            request.setNotificationVisibility(
-                DownloadManager.Request.VISIBILITY_VISIBLE
-            );
-
-            // Download to external cache (visible to system installer)
-            File destDir = context.getExternalCacheDir();
-            if (destDir == null) {
-                destDir = context.getCacheDir();
-            }
-
-            File destFile = new File(destDir, "eo1-update.apk");
-            request.setDestinationUri(Uri.fromFile(destFile));
+    /**
+     * AsyncTask that produces a verified APK:
+     * - Reuses an already verified download
+     * - Tries a delta patch against the installed APK when offered
+     * - Otherwise resumes the full download from the last partial byte
+     */
+    private class DownloadTask extends AsyncTask<UpdateInfo, Void, File> {
+        @Override
+        protected File doInBackground(UpdateInfo... params) {
+            UpdateInfo info = params[0];
+            File apkFile = getApkFile();
 
-            // Allow download over any network
-            request.setAllowedNetworkTypes(
-                DownloadManager.Request.NETWORK_WIFI |
-                DownloadManager.Request.NETWORK_MOBILE
-            );
+            if (apkFile.exists() && isValidApk(apkFile, info)) {
+                Log.i(TAG, "Verified update already downloaded");
+                return apkFile;
+            }
+            apkFile.delete();
 
-            downloadId = dm.enqueue(request);
+            File tmp = new File(apkFile.getParentFile(), APK_NAME + ".tmp");
+            try {
+                if (info.patchUrl != null && info.patchFromVersion == BuildConfig.VERSION_CODE
+                        && info.sha256 != null && applyPatch(info, tmp) && tmp.renameTo(apkFile)) {
+                    return apkFile;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Delta update failed, falling back to full download", e);
+            }
+            tmp.delete();
 
-            // Register receiver for download completion
-            registerDownloadReceiver();
+            File part = getPartFile(info.sha256 != null ? info.sha256 : "v" + info.latestVersion);
+            try {
+                if (!resumeDownload(origins.getOrigin() + info.downloadUrl, part)) {
+                    return null;
+                }
+                if (!isValidApk(part, info)) {
+                    Log.e(TAG, "Downloaded APK failed verification, discarding");
+                    part.delete();
+                    return null;
+                }
+                if (part.renameTo(apkFile)) {
+                    return apkFile;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Update download failed, will resume on next check", e);
+            }
+            return null;
+        }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Download failed to start", e);
+        @Override
+        protected void onPostExecute(File apkFile) {
+            if (apkFile != null) {
+                apkFile.setReadable(true, false);
+                installApk(Uri.fromFile(apkFile));
+            }
         }
     }
 
     /**
-     * Get the APK file location
+     * Download a delta patch (resumable) and apply it to the installed APK
+     * @return true if the rebuilt APK matches the expected hash
      */
-    private File getApkFile() {
-        File dir = context.getExternalCacheDir();
-        if (dir == null) {
-            dir = context.getCacheDir();
+    private boolean applyPatch(UpdateInfo info, File output) throws IOException {
+        File patch = getPartFile("patch-" + info.latestVersion + "-from-" + info.patchFromVersion);
+        if (!resumeDownload(origins.getOrigin() + info.patchUrl, patch)) {
+            return false;
+        }
+        if (info.patchSha256 != null && !info.patchSha256.equalsIgnoreCase(sha256Of(patch))) {
+            Log.e(TAG, "Patch failed verification, discarding");
+            patch.delete();
+            return false;
+        }
+
+        File installed = new File(context.getApplicationInfo().sourceDir);
+        String hash;
+        try {
+            hash = ApkPatcher.apply(installed, patch, output);
+        } finally {
+            // Used or unusable: a complete patch is never resumed, so a
+            // corrupt one must not survive to fail every later attempt
+            patch.delete();
+        }
+        if (!info.sha256.equalsIgnoreCase(hash)) {
+            Log.e(TAG, "Patched APK hash mismatch");
+            return false;
         }
-        return new File(dir, "eo1-update.apk");
+        Log.i(TAG, "Delta update applied (" + patch.getName() + ")");
+        return true;
     }
 
     /**
-     * Register receiver for download completion
+     * Download a URL into a partial file, continuing from its current length
+     * @return true once the file is complete
      */
-    private void registerDownloadReceiver() {
-        if (downloadReceiver != null) {
-            try {
-                context.unregisterReceiver(downloadReceiver);
-            } catch (Exception e) {
-                // Ignore if not registered
+    private boolean resumeDownload(String fileUrl, File part) throws IOException {
+        long offset = part.exists() ? part.length() : 0;
+        HttpClient.Call call = HttpClient.get().openBackground(fileUrl, 30000);
+        try {
+            HttpURLConnection conn = call.connection();
+            conn.setConnectTimeout(15000);
+            // Byte offsets refer to the file itself, not a compressed form
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                conn.setRequestProperty("Range", "bytes=" + offset + "-");
             }
-        }
 
-        downloadReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context ctx, Intent intent) {
-                long id = intent.getLongExtra(
-                    DownloadManager.EXTRA_DOWNLOAD_ID, -1
-                );
-                if (id == downloadId) {
-                    onDownloadComplete();
+            int code = call.execute();
+            boolean append;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long start = rangeStart(call.header("Content-Range"));
+                if (start != offset) {
+                    // Appending would splice the wrong bytes into the file
+                    Log.w(TAG, "Range starting at " + start + " does not continue "
+                        + part.getName() + " at " + offset + ", starting over");
+                    call.close();
+                    part.delete();
+                    return offset > 0 && resumeDownload(fileUrl, part);
                 }
+                append = true;
+                Log.i(TAG, "Resuming " + part.getName() + " at byte " + offset);
+            } else if (code == 200) {
+                append = false;
+            } else if (code == 416 && offset > 0) {
+                // Requested range starts at the end: nothing left to fetch
+                return true;
+            } else {
+                Log.e(TAG, "Download failed with status: " + code);
+                return false;
             }
-        };
 
-        context.registerReceiver(
-            downloadReceiver,
-            new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
-        );
+            InputStream in = call.body();
+            OutputStream out = new FileOutputStream(part, append);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+            return true;
+        } finally {
+            call.close();
+        }
     }
 
     /**
-     * Called when download completes
+     * First byte position of a Content-Range header ("bytes 100-199/200")
+     * @return position, or -1 if missing or malformed
      */
-    private void onDownloadComplete() {
-        Log.i(TAG, "Download complete");
-
-        DownloadManager dm = (DownloadManager) context.getSystemService(
-            Context.DOWNLOAD_SERVICE
-        );
-
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(downloadId);
+    private static long rangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-', 6);
+        if (dash == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        Cursor cursor = dm.query(query);
-        if (cursor.moveToFirst()) {
-            int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-            int uriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
+    /**
+     * Check a downloaded APK before it may reach the installer:
+     * SHA-256 when the server supplies one, plus a parseable package
+     * with the expected version
+     */
+    private boolean isValidApk(File file, UpdateInfo info) {
+        try {
+            if (info.sha256 != null && !info.sha256.equalsIgnoreCase(sha256Of(file))) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        PackageInfo pkg = context.getPackageManager().getPackageArchiveInfo(file.getPath(), 0);
+        return pkg != null && context.getPackageName().equals(pkg.packageName)
+            && (info.latestVersion == 0 || pkg.versionCode == info.latestVersion);
+    }
 
-            if (statusIndex != -1) {
-                int status = cursor.getInt(statusIndex);
+    private static String sha256Of(File file) throws IOException {
+        MessageDigest digest = AssetCache.sha256();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return AssetCache.toHex(digest.digest());
+    }
 
-                if (status == DownloadManager.STATUS_SUCCESSFUL && uriIndex != -1) {
-                    String localUri = cursor.getString(uriIndex);
-                    Log.i(TAG, "APK downloaded to: " + localUri);
+    /**
+     * Get the APK file location
+     */
+    private File getApkFile() {
+        return new File(getUpdateDir(), APK_NAME);
+    }
 
-                    // Trigger installation
-                    installApk(Uri.parse(localUri));
-                } else {
-                    Log.e(TAG, "Download failed with status: " + status);
+    /**
+     * Partial download for one specific update; leftovers of other
+     * updates are removed so stale bytes are never resumed
+     */
+    private File getPartFile(String id) {
+        String name = APK_NAME + "." + id + ".part";
+        boolean patch = id.startsWith("patch-");
+        File[] files = getUpdateDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String other = file.getName();
+                if (other.startsWith(APK_NAME + ".") && other.endsWith(".part")
+                        && !other.equals(name)
+                        && other.startsWith(APK_NAME + ".patch-") == patch) {
+                    file.delete();
                 }
             }
         }
-        cursor.close();
+        return new File(getUpdateDir(), name);
+    }
 
-        // Cleanup receiver
-        try {
-            context.unregisterReceiver(downloadReceiver);
-        } catch (Exception e) {
-            // Ignore
+    /**
+     * Download directory, external cache so the system installer can read it
+     */
+    private File getUpdateDir() {
+        File dir = context.getExternalCacheDir();
+        if (dir == null) {
+            dir = context.getCacheDir();
         }
-        downloadReceiver = null;
+        return dir;
     }
 
     /**
@@ -320,12 +517,9 @@ public class UpdateManager {
      */
     public void cleanup() {
         stopPeriodicChecks();
-        if (downloadReceiver != null) {
-            try {
-                context.unregisterReceiver(downloadReceiver);
-            } catch (Exception e) {
-                // Ignore
-            }
+        if (downloadTask != null) {
+            // Partial file is kept and resumed next time
+            downloadTask.cancel(false);
         }
     }
 }
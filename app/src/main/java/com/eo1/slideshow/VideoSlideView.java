@@ -0,0 +1,300 @@
+package com.eo1.slideshow;
+
+import android.content.Context;
+import android.graphics.Matrix;
+import android.graphics.SurfaceTexture;
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+import android.widget.FrameLayout;
+
+/**
+ * Native video slides, played over the page:
+ * - MediaPlayer decodes in hardware straight to a TextureView
+ * - Two stacked players: the next clip is prepared in the one underneath
+ *   and brought to front only once its first frame is rendered
+ * - Looping handled by the player, without a gap between passes
+ * - Playback state reported to a Listener on the UI thread
+ *
+ * All methods must be called on the UI thread.
+ */
+public class VideoSlideView extends FrameLayout {
+    private static final String TAG = "VideoSlideView";
+    // Fallback when a decoder never reports the first rendered frame
+    private static final long RENDER_START_TIMEOUT = 1000;
+
+    public static final String STATE_PREPARING = "preparing";
+    public static final String STATE_PLAYING = "playing";
+    public static final String STATE_ENDED = "ended";
+    public static final String STATE_ERROR = "error";
+    public static final String STATE_STOPPED = "stopped";
+
+    public interface Listener {
+        void onVideoState(String url, String state);
+    }
+
+    private Slot front;
+    private Slot back;
+    private Listener listener;
+    private final Metrics.Histogram startTimes = Metrics.get().histogram("video.start_ms");
+
+    public VideoSlideView(Context context) {
+        this(context, null);
+    }
+
+    public VideoSlideView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        back = new Slot(context);
+        front = new Slot(context);
+        addView(back.texture);
+        addView(front.texture);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Play a clip, using the preloaded one if it matches
+     * @param loop repeat until stop() or the next play()
+     */
+    public void play(String url, boolean loop) {
+        if (url.equals(front.url) && front.playRequested) {
+            front.loop = loop;
+            front.maybeStart();
+            return;
+        }
+        if (!url.equals(back.url)) {
+            back.open(url);
+        }
+        Metrics.get().counter("video.plays").inc();
+        back.loop = loop;
+        back.playRequested = true;
+        back.requestTime = SystemClock.elapsedRealtime();
+        back.texture.setVisibility(View.VISIBLE);
+        setVisibility(View.VISIBLE);
+        back.maybeStart();
+    }
+
+    /**
+     * Prepare a clip underneath the current one, so play() can start it
+     * without buffering
+     */
+    public void preload(String url) {
+        if (back.playRequested || url.equals(back.url) || url.equals(front.url)) {
+            return;
+        }
+        back.open(url);
+    }
+
+    /**
+     * Stop playback, release both players and hide the view
+     */
+    public void stop() {
+        String url = front.url != null ? front.url : back.url;
+        boolean active = front.playRequested || back.playRequested;
+        front.release();
+        back.release();
+        setVisibility(View.GONE);
+        if (active) {
+            notifyState(url, STATE_STOPPED);
+        }
+    }
+
+    public boolean isPlaying() {
+        return front.playRequested;
+    }
+
+    private void onRenderingStarted(Slot slot) {
+        if (slot != back) {
+            return;
+        }
+        startTimes.record(SystemClock.elapsedRealtime() - slot.requestTime);
+        Slot previous = front;
+        front = back;
+        back = previous;
+        bringChildToFront(front.texture);
+        invalidate();
+        // Hidden so its last frame does not show around a letterboxed clip
+        previous.texture.setVisibility(View.INVISIBLE);
+        previous.release();
+        notifyState(front.url, STATE_PLAYING);
+    }
+
+    private void notifyState(String url, String state) {
+        if (listener != null && url != null) {
+            listener.onVideoState(url, state);
+        }
+    }
+
+    /**
+     * One TextureView with the player that renders into it
+     */
+    private class Slot implements TextureView.SurfaceTextureListener,
+            MediaPlayer.OnPreparedListener, MediaPlayer.OnInfoListener,
+            MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener,
+            MediaPlayer.OnVideoSizeChangedListener {
+        final TextureView texture;
+        Surface surface;
+        MediaPlayer player;
+        String url;
+        boolean prepared;
+        boolean playRequested;
+        boolean loop;
+        long requestTime;
+        int videoWidth;
+        int videoHeight;
+
+        private final Runnable renderTimeout = new Runnable() {
+            @Override
+            public void run() {
+                onRenderingStarted(Slot.this);
+            }
+        };
+
+        Slot(Context context) {
+            texture = new TextureView(context);
+            texture.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+            texture.setSurfaceTextureListener(this);
+        }
+
+        void open(String url) {
+            release();
+            this.url = url;
+            player = new MediaPlayer();
+            player.setOnPreparedListener(this);
+            player.setOnInfoListener(this);
+            player.setOnCompletionListener(this);
+            player.setOnErrorListener(this);
+            player.setOnVideoSizeChangedListener(this);
+            if (surface != null) {
+                player.setSurface(surface);
+            }
+            try {
+                player.setDataSource(url);
+                player.prepareAsync();
+                notifyState(url, STATE_PREPARING);
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot open " + url + ": " + e.getMessage());
+                onError(player, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+            }
+        }
+
+        void maybeStart() {
+            if (player == null || !prepared || !playRequested || surface == null || player.isPlaying()) {
+                return;
+            }
+            player.setLooping(loop);
+            player.start();
+            removeCallbacks(renderTimeout);
+            if (this == back) {
+                postDelayed(renderTimeout, RENDER_START_TIMEOUT);
+            }
+        }
+
+        void release() {
+            removeCallbacks(renderTimeout);
+            if (player != null) {
+                player.release();
+                player = null;
+            }
+            url = null;
+            videoWidth = 0;
+            videoHeight = 0;
+            prepared = false;
+            playRequested = false;
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            prepared = true;
+            maybeStart();
+        }
+
+        @Override
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+                removeCallbacks(renderTimeout);
+                onRenderingStarted(this);
+            }
+            return false;
+        }
+
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            if (!loop) {
+                // Last frame stays on screen until the page moves on
+                notifyState(url, STATE_ENDED);
+            }
+        }
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "Playback error " + what + "/" + extra + " for " + url);
+            Metrics.get().counter("video.errors").inc();
+            String failed = url;
+            release();
+            notifyState(failed, STATE_ERROR);
+            return true;
+        }
+
+        @Override
+        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+            videoWidth = width;
+            videoHeight = height;
+            fitCenter();
+        }
+
+        /**
+         * Scale the texture so the video keeps its aspect ratio
+         */
+        void fitCenter() {
+            int viewWidth = texture.getWidth();
+            int viewHeight = texture.getHeight();
+            if (videoWidth <= 0 || videoHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+                return;
+            }
+            float scale = Math.min((float) viewWidth / videoWidth, (float) viewHeight / videoHeight);
+            Matrix matrix = new Matrix();
+            matrix.setScale(videoWidth * scale / viewWidth, videoHeight * scale / viewHeight,
+                viewWidth / 2f, viewHeight / 2f);
+            texture.setTransform(matrix);
+        }
+
+        @Override
+        public void onSurfaceTextureAvailable(SurfaceTexture st, int width, int height) {
+            surface = new Surface(st);
+            fitCenter();
+            if (player != null) {
+                player.setSurface(surface);
+                maybeStart();
+            }
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(SurfaceTexture st, int width, int height) {
+            fitCenter();
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(SurfaceTexture st) {
+            if (player != null) {
+                player.setSurface(null);
+            }
+            if (surface != null) {
+                surface.release();
+                surface = null;
+            }
+            return true;
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(SurfaceTexture st) {
+            // Not used
+        }
+    }
+}
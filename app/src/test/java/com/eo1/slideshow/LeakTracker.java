@@ -0,0 +1,186 @@
+package com.eo1.slideshow;
+
+import android.app.Application;
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Resource gauges sampled during a soak run, with checks that fail on a
+ * hard bound or on a growth trend:
+ * - retained heap after full GC
+ * - messages waiting in the main looper (posted and delayed callbacks)
+ * - registered broadcast receivers
+ * - live threads
+ *
+ * A trend is a least-squares slope over the samples after warm-up; it only
+ * fails when the fitted growth also exceeds a noise floor, so GC jitter
+ * and thread pools idling out do not fail a run.
+ */
+class LeakTracker {
+    // Samples ignored at the start while caches and pools fill up
+    private static final double WARMUP_FRACTION = 0.25;
+
+    private final Map<String, List<long[]>> series = new LinkedHashMap<String, List<long[]>>();
+
+    /**
+     * Record all gauges at the given cycle number
+     */
+    void sample(int cycle, Application app) {
+        record("heap_bytes", cycle, retainedHeap());
+        record("looper_messages", cycle, pendingMessages(Looper.getMainLooper()));
+        record("receivers", cycle, receivers(app));
+        record("threads", cycle, Thread.activeCount());
+    }
+
+    /**
+     * Receivers registered at runtime. Robolectric also lists the ones
+     * declared in the manifest, which are not counted.
+     */
+    static int receivers(Application app) {
+        int count = 0;
+        for (ShadowApplication.Wrapper wrapper : shadowOf(app).getRegisteredReceivers()) {
+            if (!(wrapper.getBroadcastReceiver() instanceof BootReceiver)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void record(String name, int cycle, long value) {
+        List<long[]> values = series.get(name);
+        if (values == null) {
+            values = new ArrayList<long[]>();
+            series.put(name, values);
+        }
+        values.add(new long[] {cycle, value});
+    }
+
+    long last(String name) {
+        List<long[]> values = series.get(name);
+        return values.get(values.size() - 1)[1];
+    }
+
+    /**
+     * Every sample must be at most max
+     */
+    void assertBounded(String name, long max) {
+        for (long[] sample : series.get(name)) {
+            if (sample[1] > max) {
+                fail(name + " reached " + sample[1] + " at cycle " + sample[0] + ", bound " + max
+                    + "\n" + describe(name));
+            }
+        }
+    }
+
+    /**
+     * Growth after warm-up must stay below maxPerCycle, unless the total
+     * fitted growth is within the noise floor
+     */
+    void assertNoTrend(String name, double maxPerCycle, long noiseFloor) {
+        List<long[]> values = series.get(name);
+        int from = (int) (values.size() * WARMUP_FRACTION);
+        List<long[]> measured = values.subList(from, values.size());
+        if (measured.size() < 3) {
+            return;
+        }
+        double slope = slope(measured);
+        double span = measured.get(measured.size() - 1)[0] - measured.get(0)[0];
+        double growth = slope * span;
+        if (slope > maxPerCycle && growth > noiseFloor) {
+            fail(String.format("%s grows by %.1f per cycle (%.0f over %.0f cycles), limit %.1f\n%s",
+                name, slope, growth, span, maxPerCycle, describe(name)));
+        }
+    }
+
+    String describe(String name) {
+        StringBuilder text = new StringBuilder(name).append(':');
+        for (long[] sample : series.get(name)) {
+            text.append(' ').append(sample[0]).append('=').append(sample[1]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Least-squares slope of value over cycle
+     */
+    private static double slope(List<long[]> samples) {
+        double n = samples.size();
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for (long[] sample : samples) {
+            sumX += sample[0];
+            sumY += sample[1];
+            sumXY += (double) sample[0] * sample[1];
+            sumXX += (double) sample[0] * sample[0];
+        }
+        double denominator = n * sumXX - sumX * sumX;
+        return denominator == 0 ? 0 : (n * sumXY - sumX * sumY) / denominator;
+    }
+
+    /**
+     * Heap in use after collections have settled. Robolectric's in-memory
+     * log is cleared first; it would otherwise look like a leak.
+     */
+    static long retainedHeap() {
+        ShadowLog.clear();
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            awaitGc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                return Math.min(now, used);
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Run the collector until a fresh object is known to be collected
+     */
+    static void awaitGc() {
+        WeakReference<Object> sentinel = new WeakReference<Object>(new Object());
+        for (int i = 0; i < 20 && sentinel.get() != null; i++) {
+            System.gc();
+            System.runFinalization();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        assertTrue("GC did not run", sentinel.get() == null);
+    }
+
+    /**
+     * Length of the looper's message list, delayed messages included
+     */
+    static int pendingMessages(Looper looper) {
+        MessageQueue queue = looper.getQueue();
+        int count = 0;
+        synchronized (queue) {
+            Message message = ReflectionHelpers.getField(queue, "mMessages");
+            while (message != null) {
+                count++;
+                message = ReflectionHelpers.getField(message, "next");
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,176 @@
+package com.eo1.slideshow;
+
+import android.app.Application;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PeerServer over loopback: blobs are served byte for byte, unknown
+ * hashes get a 404, and peers that stop reading give up their handler
+ * instead of blocking everyone else.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PeerServerTest {
+    private static final int HANDLER_THREADS = 2;
+
+    private PeerServer server;
+    private File blobs;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        Application app = RuntimeEnvironment.getApplication();
+        blobs = new File(app.getFilesDir(), "blobs");
+        blobs.mkdirs();
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+        server = new PeerServer(new ContentStore(app), port);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void servesStoredBlob() throws Exception {
+        byte[] content = content(100 * 1024);
+        String sha = store(content);
+
+        Response response = get(PeerServer.BLOB_PATH + sha);
+        assertTrue(response.head, response.head.startsWith("HTTP/1.1 200"));
+        assertTrue(response.head, response.head.contains("Content-Length: " + content.length));
+        assertArrayEquals(content, response.body);
+    }
+
+    @Test
+    public void unknownBlobIsNotFound() throws Exception {
+        char[] zeros = new char[64];
+        Arrays.fill(zeros, '0');
+        assertTrue(get(PeerServer.BLOB_PATH + new String(zeros)).head.startsWith("HTTP/1.1 404"));
+        assertTrue(get("/other").head.startsWith("HTTP/1.1 404"));
+    }
+
+    /**
+     * Every handler busy with a peer that never reads; a healthy request
+     * is served once the stalled transfers time out. Socket buffers may
+     * drain once more before that, so allow up to two windows.
+     */
+    @Test
+    public void stalledPeersDoNotBlockServing() throws Exception {
+        // Far more than the socket buffers on both ends hold
+        String large = store(content(16 * 1024 * 1024));
+        byte[] small = content(1024);
+        String smallSha = store(small);
+
+        List<Socket> stalled = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < HANDLER_THREADS; i++) {
+                Socket socket = new Socket();
+                socket.setReceiveBufferSize(4096);
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                request(socket, PeerServer.BLOB_PATH + large);
+                stalled.add(socket);
+            }
+
+            long start = System.currentTimeMillis();
+            Response response = get(PeerServer.BLOB_PATH + smallSha);
+            long took = System.currentTimeMillis() - start;
+            assertTrue(response.head, response.head.startsWith("HTTP/1.1 200"));
+            assertArrayEquals(small, response.body);
+            assertTrue("served after " + took + " ms", took < PeerServer.WRITE_TIMEOUT * 3);
+        } finally {
+            for (Socket socket : stalled) {
+                socket.close();
+            }
+        }
+    }
+
+    private String store(byte[] content) throws IOException {
+        String sha = AssetCache.toHex(AssetCache.sha256().digest(content));
+        OutputStream out = new FileOutputStream(new File(blobs, sha));
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return sha;
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 7 + i / 251);
+        }
+        return content;
+    }
+
+    private static class Response {
+        String head;
+        byte[] body;
+    }
+
+    private Response get(String path) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            socket.setSoTimeout((int) PeerServer.WRITE_TIMEOUT * 3);
+            request(socket, path);
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                all.write(buffer, 0, read);
+            }
+            byte[] bytes = all.toByteArray();
+            int split = indexOfBlankLine(bytes);
+            Response response = new Response();
+            response.head = new String(bytes, 0, split, "US-ASCII");
+            response.body = Arrays.copyOfRange(bytes, split + 4, bytes.length);
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void request(Socket socket, String path) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: peer\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static int indexOfBlankLine(byte[] bytes) {
+        for (int i = 3; i < bytes.length; i++) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                return i - 3;
+            }
+        }
+        throw new AssertionError("No response head");
+    }
+}
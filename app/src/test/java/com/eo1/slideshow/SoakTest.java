@@ -0,0 +1,366 @@
+package com.eo1.slideshow;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowNetworkInfo;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Long-run soak of MainActivity and UpdateManager in simulated time,
+ * against a local StubServer. Looks for the slow leaks that only show
+ * after weeks in the field: handler chains, receivers, threads, heap.
+ *
+ * Length is set with -PsoakCycles (system property soak.cycles); each
+ * cycle is three simulated minutes, so 3000 cycles are about six days:
+ *   ./gradlew :app:testDebugUnitTest --tests '*SoakTest' -PsoakCycles=3000
+ *
+ * WebViews are Robolectric shadows and load nothing; page loads are
+ * completed or failed by calling the WebViewClient as the platform would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SoakTest {
+    private static final int CYCLES = Integer.getInteger("soak.cycles", 300);
+    private static final long CYCLE_MS = TimeUnit.MINUTES.toMillis(3);
+    // Real time allowed for background work (probes, downloads) to land
+    private static final long WAIT_TIMEOUT = 15000;
+    // ConnectivityMonitor and SleepScheduler
+    private static final int RECEIVERS = 2;
+
+    private StubServer server;
+    private Application app;
+
+    private interface Condition {
+        boolean met();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubServer();
+        app = RuntimeEnvironment.getApplication();
+        DeviceConfig config = new DeviceConfig(app);
+        config.setOrigins(server.getOrigin());
+        config.setDeviceId("soak-0");
+        setLink(true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Thousands of reloads, network flaps, outages, update checks and
+     * device ID changes in one activity; nothing may accumulate
+     */
+    @Test
+    public void longRunDoesNotLeak() {
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class).setup();
+        final MainActivity activity = controller.get();
+        goOnline(activity);
+        finishLoad(activity);
+        RenderWatchdog watchdog = ReflectionHelpers.getField(activity, "watchdog");
+        stopStallChecker(watchdog);
+
+        LeakTracker tracker = new LeakTracker();
+        int sampleEvery = Math.max(5, CYCLES / 40);
+        int deviceChanges = 0;
+        for (int cycle = 1; cycle <= CYCLES; cycle++) {
+            if (cycle % 50 == 0) {
+                String deviceId = "soak-" + (++deviceChanges % 4);
+                // Only the visible page's bridge acts right away
+                bridge(activity).setDeviceId(deviceId);
+                finishLoad(activity);
+                assertTrue(pages(activity).getFront().getUrl().endsWith("/d/" + deviceId));
+            } else if (cycle % 40 == 0) {
+                outage(activity);
+            } else if (cycle % 10 == 0) {
+                networkFlap(activity);
+            } else {
+                activity.reloadWithDeviceId();
+                finishLoad(activity);
+            }
+            if (cycle % 20 == 0) {
+                updateCheck(activity, bridge(activity));
+            }
+            advance(CYCLE_MS);
+            checkMainThread(watchdog);
+            if (cycle == 1 || cycle % sampleEvery == 0) {
+                tracker.sample(cycle, app);
+            }
+        }
+
+        assertTrue("origin probes reached the stub", server.hits("/") > 0);
+        assertTrue("manifest synced", server.hits("/d/soak-0") > 0);
+        tracker.assertBounded("receivers", RECEIVERS);
+        assertEquals("receivers at the end", RECEIVERS, tracker.last("receivers"));
+        tracker.assertBounded("looper_messages", 200);
+        tracker.assertNoTrend("looper_messages", 0.05, 10);
+        tracker.assertNoTrend("threads", 0.02, 8);
+        tracker.assertNoTrend("heap_bytes", 8 * 1024, 8 * 1024 * 1024);
+        // Nothing in a healthy run may look like a frozen page
+        assertEquals("[]", watchdog.getHistoryJson());
+
+        controller.pause().stop().destroy();
+        idle();
+        assertEquals("receivers left after destroy", 0, LeakTracker.receivers(app));
+    }
+
+    /**
+     * Activities recreated over and over (render mode switches, watchdog
+     * restarts) must be released with everything they started
+     */
+    @Test
+    public void recreatedActivitiesAreReleased() {
+        int rounds = Math.max(20, CYCLES / 10);
+        int sampleEvery = Math.max(2, rounds / 20);
+        LeakTracker tracker = new LeakTracker();
+        List<WeakReference<MainActivity>> destroyed = new ArrayList<WeakReference<MainActivity>>();
+
+        for (int round = 1; round <= rounds; round++) {
+            ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class).setup();
+            MainActivity activity = controller.get();
+            goOnline(activity);
+            finishLoad(activity);
+            activity.reloadWithDeviceId();
+            finishLoad(activity);
+            advance(TimeUnit.MINUTES.toMillis(1));
+            controller.pause().stop().destroy();
+            idle();
+            destroyed.add(new WeakReference<MainActivity>(activity));
+            assertEquals("receivers left after destroy", 0, LeakTracker.receivers(app));
+            if (round == 1 || round % sampleEvery == 0) {
+                tracker.sample(round, app);
+            }
+        }
+
+        // Let late callbacks run out, then count survivors
+        advance(TimeUnit.MINUTES.toMillis(10));
+        LeakTracker.awaitGc();
+        int retained = 0;
+        for (WeakReference<MainActivity> ref : destroyed) {
+            if (ref.get() != null) {
+                retained++;
+            }
+        }
+        assertTrue(retained + " of " + rounds + " destroyed activities still reachable", retained <= 2);
+        tracker.assertNoTrend("looper_messages", 0.1, 5);
+        tracker.assertNoTrend("threads", 0.2, 8);
+        tracker.assertNoTrend("heap_bytes", 64 * 1024, 8 * 1024 * 1024);
+    }
+
+    private void networkFlap(MainActivity activity) {
+        setLink(false);
+        assertEquals(ConnectivityMonitor.State.OFFLINE, connectivity(activity).getState());
+        advance(TimeUnit.SECONDS.toMillis(30));
+        setLink(true);
+        goOnline(activity);
+        finishLoad(activity);
+    }
+
+    /**
+     * Server down during a reload: the load fails, probes back off, and
+     * the page comes back once the server answers again
+     */
+    private void outage(final MainActivity activity) {
+        server.setAvailable(false);
+        activity.reloadWithDeviceId();
+        failLoad(activity);
+        waitFor("server marked unreachable", new Condition() {
+            @Override
+            public boolean met() {
+                return connectivity(activity).getState() == ConnectivityMonitor.State.SERVER_UNREACHABLE;
+            }
+        });
+        advance(TimeUnit.MINUTES.toMillis(2));
+        server.setAvailable(true);
+        // Probe backoff is capped at five minutes
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (!connectivity(activity).isServerReachable()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("server not reachable again after the outage");
+            }
+            advance(TimeUnit.SECONDS.toMillis(10));
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        finishLoad(activity);
+    }
+
+    private void updateCheck(MainActivity activity, MainActivity.EO1Interface bridge) {
+        final int before = server.hits("/api/app/version");
+        final UpdateManager updateManager = ReflectionHelpers.getField(activity, "updateManager");
+        bridge.checkForUpdate();
+        waitFor("update check", new Condition() {
+            @Override
+            public boolean met() {
+                AsyncTask<?, ?, ?> task = ReflectionHelpers.getField(updateManager, "checkTask");
+                return server.hits("/api/app/version") > before
+                    && task != null && task.getStatus() == AsyncTask.Status.FINISHED;
+            }
+        });
+    }
+
+    /**
+     * The watchdog's stall check compares real time on its own thread with
+     * ticks on the main looper, which only runs here when the test idles
+     * it; the test runs the check itself instead
+     */
+    private static void stopStallChecker(RenderWatchdog watchdog) {
+        ScheduledExecutorService checker = ReflectionHelpers.getField(watchdog, "stallChecker");
+        checker.shutdownNow();
+        ReflectionHelpers.setField(watchdog, "stallChecker", null);
+    }
+
+    /**
+     * Post a main thread tick, let the looper run it, then check: a stall
+     * can only be recorded if the tick did not run
+     */
+    private static void checkMainThread(RenderWatchdog watchdog) {
+        Handler handler = ReflectionHelpers.getField(watchdog, "handler");
+        Runnable tick = ReflectionHelpers.getField(watchdog, "mainTick");
+        handler.post(tick);
+        idle();
+        ReflectionHelpers.callInstanceMethod(watchdog, "checkMainThread");
+    }
+
+    /**
+     * Wait for the probe after a link change to find the server
+     */
+    private void goOnline(final MainActivity activity) {
+        app.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        waitFor("online", new Condition() {
+            @Override
+            public boolean met() {
+                return connectivity(activity).isServerReachable();
+            }
+        });
+    }
+
+    /**
+     * Complete a pending page load as the platform would: onPageFinished,
+     * then PageSwapper's first-paint timeout swaps it in
+     */
+    private void finishLoad(MainActivity activity) {
+        PageSwapper pages = pages(activity);
+        if (!pages.isLoading()) {
+            return;
+        }
+        WebView back = loadingView(activity);
+        shadowOf(back).getWebViewClient().onPageFinished(back, shadowOf(back).getLastLoadedUrl());
+        advance(TimeUnit.SECONDS.toMillis(4));
+        assertFalse("page shown", pages.isLoading());
+    }
+
+    @SuppressWarnings("deprecation")
+    private void failLoad(MainActivity activity) {
+        assertTrue("load pending", pages(activity).isLoading());
+        WebView back = loadingView(activity);
+        shadowOf(back).getWebViewClient().onReceivedError(back, WebViewClient.ERROR_CONNECT,
+            "Connection refused", shadowOf(back).getLastLoadedUrl());
+        idle();
+        assertFalse(pages(activity).isLoading());
+    }
+
+    /**
+     * The hidden page, always stacked first in the container
+     */
+    private static WebView loadingView(MainActivity activity) {
+        ViewGroup container = (ViewGroup) pages(activity).getFront().getParent();
+        return (WebView) container.getChildAt(0);
+    }
+
+    private static PageSwapper pages(MainActivity activity) {
+        return ReflectionHelpers.getField(activity, "pages");
+    }
+
+    private static ConnectivityMonitor connectivity(MainActivity activity) {
+        return ReflectionHelpers.getField(activity, "connectivity");
+    }
+
+    private static MainActivity.EO1Interface bridge(MainActivity activity) {
+        return (MainActivity.EO1Interface) shadowOf(pages(activity).getFront()).getJavascriptInterface("EO1");
+    }
+
+    @SuppressWarnings("deprecation")
+    private void setLink(boolean up) {
+        ConnectivityManager cm = (ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = ShadowNetworkInfo.newInstance(
+            up ? NetworkInfo.DetailedState.CONNECTED : NetworkInfo.DetailedState.DISCONNECTED,
+            ConnectivityManager.TYPE_WIFI, 0, true,
+            up ? NetworkInfo.State.CONNECTED : NetworkInfo.State.DISCONNECTED);
+        shadowOf(cm).setActiveNetworkInfo(info);
+        // Sticky, as on a device: a monitor registering later gets it too
+        app.sendStickyBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        idle();
+    }
+
+    /**
+     * Run the main looper while background threads finish their part
+     */
+    private static void waitFor(String what, Condition condition) {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (true) {
+            idle();
+            if (condition.met()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted waiting for " + what);
+            }
+        }
+    }
+
+    private static void idle() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    /**
+     * Advance simulated time, running everything that falls due
+     */
+    private static void advance(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(millis, TimeUnit.MILLISECONDS);
+    }
+}
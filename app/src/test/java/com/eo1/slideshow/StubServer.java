@@ -0,0 +1,151 @@
+package com.eo1.slideshow;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the slideshow server, enough for the app's native
+ * networking:
+ * - HEAD / for origin probes
+ * - /d/<id> page, ?format=manifest with ETag, /d/<id>/events (no push)
+ * - /api/app/version, "no update", with ETag and 304
+ * - /media/<n>.jpg blobs referenced by the manifest
+ * Can be taken down to simulate an outage. Requests are counted per path.
+ */
+class StubServer {
+    private static final int MEDIA_ITEMS = 3;
+
+    private final HttpServer server;
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<String, AtomicInteger>();
+    private final byte[][] media = new byte[MEDIA_ITEMS][];
+    private volatile boolean available = true;
+
+    StubServer() throws IOException {
+        for (int i = 0; i < MEDIA_ITEMS; i++) {
+            media[i] = new byte[4096 + i];
+            for (int j = 0; j < media[i].length; j++) {
+                media[i][j] = (byte) (i * 31 + j);
+            }
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    String getOrigin() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    int hits(String path) {
+        AtomicInteger count = hits.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+        AtomicInteger count = hits.get(path);
+        if (count == null) {
+            hits.putIfAbsent(path, new AtomicInteger());
+            count = hits.get(path);
+        }
+        count.incrementAndGet();
+
+        if (!available) {
+            send(exchange, 503, "text/plain", new byte[0]);
+        } else if (path.equals("/")) {
+            send(exchange, 200, "text/html", "<html></html>".getBytes("UTF-8"));
+        } else if (path.equals("/api/app/version")) {
+            String etag = "\"v" + BuildConfig.VERSION_CODE + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                send(exchange, 304, null, null);
+            } else {
+                exchange.getResponseHeaders().set("ETag", etag);
+                send(exchange, 200, "application/json", ("{\"update_available\": false, \"latest_version\": "
+                    + BuildConfig.VERSION_CODE + "}").getBytes("UTF-8"));
+            }
+        } else if (path.startsWith("/media/")) {
+            int index = Integer.parseInt(path.substring(7, path.indexOf('.')));
+            send(exchange, 200, "image/jpeg", media[index]);
+        } else if (path.startsWith("/d/") && path.endsWith("/events")) {
+            send(exchange, 404, "text/plain", new byte[0]);
+        } else if (path.startsWith("/d/") && "format=manifest".equals(query)) {
+            String etag = "\"m" + MEDIA_ITEMS + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                send(exchange, 304, null, null);
+            } else {
+                exchange.getResponseHeaders().set("ETag", etag);
+                send(exchange, 200, "application/json", manifest().getBytes("UTF-8"));
+            }
+        } else if (path.startsWith("/d/")) {
+            send(exchange, 200, "text/html", "<html><body>slideshow</body></html>".getBytes("UTF-8"));
+        } else {
+            send(exchange, 404, "text/plain", new byte[0]);
+        }
+    }
+
+    private String manifest() {
+        StringBuilder json = new StringBuilder("{\"items\": [");
+        for (int i = 0; i < MEDIA_ITEMS; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"url\": \"/media/").append(i).append(".jpg\", \"size\": ").append(media[i].length)
+                .append(", \"sha256\": \"").append(sha256(media[i])).append("\", \"mime\": \"image/jpeg\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void send(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        boolean empty = body == null || body.length == 0 || exchange.getRequestMethod().equals("HEAD") || code == 304;
+        exchange.sendResponseHeaders(code, empty ? -1 : body.length);
+        if (!empty) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
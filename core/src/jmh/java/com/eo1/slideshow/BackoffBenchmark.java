@@ -0,0 +1,34 @@
+package com.eo1.slideshow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry scheduling, called on every failed request and periodic check
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BackoffBenchmark {
+    private final Backoff backoff = new Backoff(5000, 5 * 60 * 1000);
+
+    @Benchmark
+    public long nextDelay() {
+        long delay = backoff.nextDelay();
+        if (backoff.getAttempts() > 12) {
+            backoff.reset();
+        }
+        return delay;
+    }
+
+    @Benchmark
+    public long jitter() {
+        return Backoff.jitter(6 * 60 * 60 * 1000L, 0.1);
+    }
+}
@@ -0,0 +1,97 @@
+package com.eo1.slideshow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache index hot paths: key hashing, lookup latency, insertion and the
+ * LRU eviction scan, on a real memory-mapped file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheIndexBenchmark {
+    private static final String URL_PREFIX = "http://93.127.216.80:3000/media/img_";
+
+    @Param({"1000", "20000"})
+    public int entries;
+
+    private File file;
+    private CacheIndex index;
+    private long[] keys;
+    private long[] absent;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("cache-index", ".bin");
+        file.delete();
+        index = new CacheIndex(file);
+        keys = new long[entries];
+        absent = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = CacheIndex.hashKey(URL_PREFIX + i + ".jpg");
+            absent[i] = CacheIndex.hashKey(URL_PREFIX + i + ".png");
+            index.put(keys[i], 250000, i, "image/jpeg", "\"etag-" + i + "\"", null, false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long hashKey() {
+        return CacheIndex.hashKey(URL_PREFIX + (next++ % entries) + ".jpg");
+    }
+
+    @Benchmark
+    public int lookupHit() {
+        return index.find(keys[next++ % entries]);
+    }
+
+    @Benchmark
+    public int lookupMiss() {
+        return index.find(absent[next++ % entries]);
+    }
+
+    /**
+     * Replace an entry: the old record is flagged dead and a new one
+     * appended, with compaction once dead records dominate
+     */
+    @Benchmark
+    public int replace() throws IOException {
+        int i = next++ % entries;
+        int record = index.put(keys[i], 250000, i, "image/jpeg", "\"etag-" + i + "\"", null, false);
+        index.compactIfNeeded();
+        return record;
+    }
+
+    /**
+     * One eviction as AssetCache does it: find the least recently used
+     * entry, drop it, and add a replacement so the size stays constant
+     */
+    @Benchmark
+    public int evict() throws IOException {
+        int oldest = index.oldest(1)[0];
+        long key = index.getKey(oldest);
+        index.remove(key);
+        index.put(key, 250000, 0, "image/jpeg", null, null, false);
+        index.compactIfNeeded();
+        return oldest;
+    }
+}
@@ -0,0 +1,76 @@
+package com.eo1.slideshow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse throughput of the version response and playlist manifests
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JsonParseBenchmark {
+    private static final String VERSION_RESPONSE = "{\"update_available\": true,"
+        + " \"download_url\": \"/api/apk/download\", \"latest_version\": 42,"
+        + " \"sha256\": \"" + hex(1) + "\", \"patch_url\": \"/api/apk/patch/41\","
+        + " \"patch_sha256\": \"" + hex(2) + "\", \"patch_from_version\": 41,"
+        + " \"notes\": {\"en\": \"Fixes\", \"tags\": [\"stable\", null]}}";
+
+    @Param({"50", "1000"})
+    public int items;
+
+    private String manifest;
+    private URL base;
+
+    @Setup
+    public void setup() throws IOException {
+        manifest = manifestJson(items);
+        base = new URL("http://93.127.216.80:3000/d/frame-01");
+    }
+
+    @Benchmark
+    public int updateInfo() throws IOException {
+        // UpdateInfo is package-private; return a field for the blackhole
+        return UpdateInfo.parse(new StringReader(VERSION_RESPONSE)).latestVersion;
+    }
+
+    @Benchmark
+    public Manifest manifest() throws IOException {
+        return Manifest.parse(new StringReader(manifest), base);
+    }
+
+    static String manifestJson(int count) {
+        StringBuilder json = new StringBuilder("{\"version\": 7, \"items\": [");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"url\": \"/media/img_").append(i).append(".jpg\", \"size\": ")
+                .append(200000 + i).append(", \"sha256\": \"").append(hex(i))
+                .append("\", \"mime\": \"image/jpeg\", \"caption\": null}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * 64 hex digits derived from a seed
+     */
+    static String hex(int seed) {
+        StringBuilder hex = new StringBuilder(64);
+        long value = seed * 0x9E3779B97F4A7C15L;
+        while (hex.length() < 64) {
+            value = value * 6364136223846793005L + 1442695040888963407L;
+            hex.append(String.format("%016x", value));
+        }
+        return hex.toString();
+    }
+}
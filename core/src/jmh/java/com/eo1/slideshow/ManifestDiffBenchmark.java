@@ -0,0 +1,55 @@
+package com.eo1.slideshow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of working out what a sync has to download and what it may delete
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestDiffBenchmark {
+    @Param({"50", "1000"})
+    public int items;
+
+    private Manifest manifest;
+    private Set<String> stored;
+
+    @Setup
+    public void setup() throws IOException {
+        manifest = Manifest.parse(new StringReader(JsonParseBenchmark.manifestJson(items)),
+            new URL("http://93.127.216.80:3000/d/frame-01"));
+        // Typical sync: most content already there, a tenth new
+        stored = new HashSet<String>();
+        for (int i = 0; i < items; i++) {
+            if (i % 10 != 0) {
+                stored.add(JsonParseBenchmark.hex(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Manifest.Item> missing() {
+        return manifest.missingFrom(stored);
+    }
+
+    @Benchmark
+    public Set<String> referenced() {
+        return manifest.referencedHashes();
+    }
+}
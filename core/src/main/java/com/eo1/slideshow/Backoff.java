@@ -0,0 +1,48 @@
+package com.eo1.slideshow;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with jitter, so devices that fail together
+ * do not retry together.
+ */
+public class Backoff {
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private int attempts;
+
+    public Backoff(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Delay before the next attempt: a random value between half and all
+     * of base * 2^attempts, capped at maxDelay
+     */
+    public synchronized long nextDelay() {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(attempts, 30));
+        attempts++;
+        return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+    }
+
+    /**
+     * Start over after a success
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Randomly spread a delay by +/- the given fraction
+     */
+    public static long jitter(long delay, double fraction) {
+        double spread = (Math.random() * 2 - 1) * fraction;
+        return Math.max(0, (long) (delay * (1 + spread)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.eo1.slideshow;
+
+/**
+ * Token bucket shared by background downloads to cap their total
+ * bandwidth. A rate of 0 means unlimited.
+ */
+public class BandwidthLimiter {
+    private volatile long bytesPerSecond;
+    private long available;
+    private long lastRefill;
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Block until the given number of bytes may be transferred
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long rate = bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            // Allow bursts of at most one second worth of bytes
+            available = Math.min(rate, available + (now - lastRefill) * rate / 1000000000L);
+            lastRefill = now;
+            available -= bytes;
+            wait = available < 0 ? -available * 1000L / rate : 0;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
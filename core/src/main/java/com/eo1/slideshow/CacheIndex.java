@@ -0,0 +1,428 @@
+package com.eo1.slideshow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Memory-mapped index of cache entries in fixed-size binary records:
+ * - Opened without per-entry allocation: records are read in place and
+ *   keys go into a primitive open-addressing table
+ * - O(1) lookup by 64-bit key hash
+ * - New entries are appended; the header count is advanced only after
+ *   the record is complete, so a crash never exposes a torn record
+ * - Replaced and removed records are flagged dead and dropped by
+ *   compaction, which rewrites the file and renames it into place
+ *
+ * Not thread-safe; callers synchronize.
+ *
+ * Record layout (RECORD_SIZE bytes):
+ *   key hash (8), flags (4), reserved (4), size (8), last access (8),
+ *   validated at (8), reserved (32), mime (48), etag (96), last-modified (40)
+ * Flags: FLAG_LIVE, FLAG_VARIANT. Strings are stored as a length byte
+ * followed by UTF-8 bytes.
+ */
+class CacheIndex {
+    private static final int MAGIC = 0x454F3149; // "EO1I"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 256;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MIN_COMPACT_DEAD = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int FLAG_LIVE = 1;
+    // Content is a display-sized variant, not the original
+    static final int FLAG_VARIANT = 2;
+
+    private static final int OFF_KEY = 0;
+    private static final int OFF_FLAGS = 8;
+    private static final int OFF_SIZE = 16;
+    private static final int OFF_ACCESS = 24;
+    private static final int OFF_VALIDATED = 32;
+    private static final int OFF_MIME = 72;
+    private static final int OFF_ETAG = 120;
+    private static final int OFF_LAST_MODIFIED = 216;
+    private static final int LEN_MIME = 48;
+    private static final int LEN_ETAG = 96;
+    private static final int LEN_LAST_MODIFIED = 40;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+    private int live;
+    private long totalBytes;
+
+    // Open addressing: key hash -> record number, -1 when removed
+    private long[] tableKeys;
+    private int[] tableRecords;
+    private int tableUsed;
+
+    CacheIndex(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    /**
+     * 64-bit key for a string, from its SHA-1. Never 0, which marks an
+     * empty table slot.
+     */
+    static long hashKey(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * @return record number, or -1 if the key is not indexed
+     */
+    int find(long key) {
+        int mask = tableKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (tableKeys[slot] != 0) {
+            if (tableKeys[slot] == key) {
+                return tableRecords[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add or replace an entry
+     * @param variant whether the content is a display-sized variant
+     * @return record number of the new entry
+     */
+    int put(long key, long size, long validatedAt,
+            String mimeType, String etag, String lastModified, boolean variant) throws IOException {
+        remove(key);
+        if (count == capacity) {
+            grow();
+        }
+        int record = count;
+        int base = recordOffset(record);
+        for (int i = 0; i < RECORD_SIZE; i += 8) {
+            map.putLong(base + i, 0L);
+        }
+        map.putLong(base + OFF_KEY, key);
+        map.putLong(base + OFF_SIZE, size);
+        map.putLong(base + OFF_ACCESS, System.currentTimeMillis());
+        map.putLong(base + OFF_VALIDATED, validatedAt);
+        putString(base + OFF_MIME, LEN_MIME, mimeType);
+        putString(base + OFF_ETAG, LEN_ETAG, etag);
+        putString(base + OFF_LAST_MODIFIED, LEN_LAST_MODIFIED, lastModified);
+        // Commit: record first, then the header count that makes it visible
+        map.putInt(base + OFF_FLAGS, variant ? FLAG_LIVE | FLAG_VARIANT : FLAG_LIVE);
+        count++;
+        map.putInt(8, count);
+
+        tableInsert(key, record);
+        live++;
+        totalBytes += size;
+        return record;
+    }
+
+    /**
+     * Flag an entry dead; its space is reclaimed by compaction
+     */
+    void remove(long key) {
+        int mask = tableKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (tableKeys[slot] != 0) {
+            if (tableKeys[slot] == key) {
+                int record = tableRecords[slot];
+                if (record >= 0) {
+                    map.putInt(recordOffset(record) + OFF_FLAGS, 0);
+                    tableRecords[slot] = -1;
+                    live--;
+                    totalBytes -= getSize(record);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    long getKey(int record) {
+        return map.getLong(recordOffset(record) + OFF_KEY);
+    }
+
+    boolean isVariant(int record) {
+        return (map.getInt(recordOffset(record) + OFF_FLAGS) & FLAG_VARIANT) != 0;
+    }
+
+    long getSize(int record) {
+        return map.getLong(recordOffset(record) + OFF_SIZE);
+    }
+
+    long getLastAccess(int record) {
+        return map.getLong(recordOffset(record) + OFF_ACCESS);
+    }
+
+    long getValidatedAt(int record) {
+        return map.getLong(recordOffset(record) + OFF_VALIDATED);
+    }
+
+    String getMimeType(int record) {
+        return getString(recordOffset(record) + OFF_MIME);
+    }
+
+    String getEtag(int record) {
+        return getString(recordOffset(record) + OFF_ETAG);
+    }
+
+    String getLastModified(int record) {
+        return getString(recordOffset(record) + OFF_LAST_MODIFIED);
+    }
+
+    /**
+     * Update the access time in place
+     */
+    void touch(int record, long time) {
+        map.putLong(recordOffset(record) + OFF_ACCESS, time);
+    }
+
+    void setValidatedAt(int record, long time) {
+        map.putLong(recordOffset(record) + OFF_VALIDATED, time);
+    }
+
+    /**
+     * Least recently used live records whose sizes add up to at least
+     * bytes (all of them if the index holds less), oldest first. One scan
+     * and one sort, however many records are returned.
+     */
+    int[] oldest(long bytes) {
+        Integer[] records = new Integer[live];
+        int n = 0;
+        for (int record = 0; record < count && n < records.length; record++) {
+            if (isLive(recordOffset(record))) {
+                records[n++] = record;
+            }
+        }
+        Arrays.sort(records, 0, n, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long accessA = getLastAccess(a);
+                long accessB = getLastAccess(b);
+                return accessA < accessB ? -1 : (accessA == accessB ? 0 : 1);
+            }
+        });
+        int taken = 0;
+        long sum = 0;
+        while (taken < n && sum < bytes) {
+            sum += getSize(records[taken]);
+            taken++;
+        }
+        int[] oldest = new int[taken];
+        for (int i = 0; i < taken; i++) {
+            oldest[i] = records[i];
+        }
+        return oldest;
+    }
+
+    int getLiveCount() {
+        return live;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Rewrite the file without dead records once they outnumber live ones
+     */
+    void compactIfNeeded() throws IOException {
+        int dead = count - live;
+        if (dead < MIN_COMPACT_DEAD || dead < live) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(live).putInt(0);
+            header.flip();
+            channel.write(header);
+            for (int record = 0; record < count; record++) {
+                int base = recordOffset(record);
+                if (!isLive(base)) {
+                    continue;
+                }
+                ByteBuffer slice = map.duplicate();
+                slice.position(base);
+                slice.limit(base + RECORD_SIZE);
+                channel.write(slice);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        close();
+        boolean replaced = tmp.renameTo(file);
+        if (!replaced) {
+            tmp.delete();
+        }
+        open();
+        if (!replaced) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    void close() throws IOException {
+        if (raf != null) {
+            map.force();
+            raf.close();
+            raf = null;
+            map = null;
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        count = 0;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(0);
+            if (raf.readInt() == MAGIC && raf.readInt() == VERSION) {
+                count = raf.readInt();
+                long stored = (raf.length() - HEADER_SIZE) / RECORD_SIZE;
+                if (count < 0 || count > stored) {
+                    count = 0;
+                }
+            }
+        }
+        capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2);
+        mapFile();
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, count);
+
+        // Build the lookup table straight from the mapped records
+        live = 0;
+        totalBytes = 0;
+        initTable(capacity * 2);
+        for (int record = 0; record < count; record++) {
+            int base = recordOffset(record);
+            if (isLive(base)) {
+                tableInsert(map.getLong(base + OFF_KEY), record);
+                live++;
+                totalBytes += map.getLong(base + OFF_SIZE);
+            }
+        }
+    }
+
+    private void mapFile() throws IOException {
+        long length = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (raf.length() < length) {
+            raf.setLength(length);
+        }
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private void grow() throws IOException {
+        map.force();
+        capacity *= 2;
+        mapFile();
+    }
+
+    private void initTable(int size) {
+        tableKeys = new long[size];
+        tableRecords = new int[size];
+        tableUsed = 0;
+    }
+
+    private void tableInsert(long key, int record) {
+        if ((tableUsed + 1) * 2 > tableKeys.length) {
+            // Slots of removed keys count as used until a rehash drops
+            // them; size for the live keys so churn does not grow the table
+            int size = INITIAL_CAPACITY * 2;
+            while (size < (live + 1) * 4) {
+                size *= 2;
+            }
+            rehash(size);
+        }
+        int mask = tableKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (tableKeys[slot] != 0) {
+            if (tableKeys[slot] == key) {
+                tableRecords[slot] = record;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        tableKeys[slot] = key;
+        tableRecords[slot] = record;
+        tableUsed++;
+    }
+
+    /**
+     * Rebuild the table, dropping keys of removed entries
+     */
+    private void rehash(int size) {
+        long[] oldKeys = tableKeys;
+        int[] oldRecords = tableRecords;
+        initTable(size);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && oldRecords[i] >= 0) {
+                tableInsert(oldKeys[i], oldRecords[i]);
+            }
+        }
+    }
+
+    private boolean isLive(int base) {
+        return (map.getInt(base + OFF_FLAGS) & FLAG_LIVE) != 0;
+    }
+
+    private static int mix(long key) {
+        long h = key ^ (key >>> 32);
+        return (int) (h ^ (h >>> 16));
+    }
+
+    private static int recordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private void putString(int offset, int fieldLength, String value) {
+        if (value == null) {
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > fieldLength - 1) {
+            // Too long to keep; treated as absent
+            return;
+        }
+        map.put(offset, (byte) bytes.length);
+        map.position(offset + 1);
+        map.put(bytes);
+    }
+
+    private String getString(int offset) {
+        int length = map.get(offset) & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        map.position(offset + 1);
+        map.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,427 @@
+package com.eo1.slideshow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for JSON, the subset of android.util.JsonReader the
+ * app uses, so parsing code runs (and can be benchmarked) on a plain JVM:
+ * - Reads through a small char buffer; only names and strings allocate
+ * - Like the platform reader, a call that does not match the next token
+ *   throws IllegalStateException, broken syntax throws IOException
+ *
+ * Not thread-safe.
+ */
+public class JsonStreamReader implements Closeable {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+        NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    // Scope stack entries
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[1024];
+    private int pos;
+    private int limit;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+
+    // Token read by peek() but not consumed yet
+    private Token peeked;
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonStreamReader(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return text.toString();
+    }
+
+    /**
+     * String value; numbers are returned as their literal text
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token != Token.STRING && token != Token.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        peeked = null;
+        return text.toString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return text.charAt(0) == 't';
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    public long nextLong() throws IOException {
+        Token token = peek();
+        if (token != Token.NUMBER && token != Token.STRING) {
+            throw new IllegalStateException("Expected a long but was " + token);
+        }
+        peeked = null;
+        try {
+            return Long.parseLong(text.toString());
+        } catch (NumberFormatException e) {
+            double value = parseDouble();
+            long result = (long) value;
+            if (result != value) {
+                throw new NumberFormatException("Not a long: " + text);
+            }
+            return result;
+        }
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if ((int) value != value) {
+            throw new NumberFormatException("Not an int: " + text);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        Token token = peek();
+        if (token != Token.NUMBER && token != Token.STRING) {
+            throw new IllegalStateException("Expected a double but was " + token);
+        }
+        peeked = null;
+        return parseDouble();
+    }
+
+    /**
+     * Skip the next value, including nested objects and arrays. Names and
+     * the end of an object or array are not values.
+     */
+    public void skipValue() throws IOException {
+        Token first = peek();
+        if (first == Token.NAME || first == Token.END_OBJECT || first == Token.END_ARRAY
+                || first == Token.END_DOCUMENT) {
+            throw new IllegalStateException("Expected a value but was " + first);
+        }
+        int nested = 0;
+        do {
+            Token token = peek();
+            peeked = null;
+            if (token == Token.BEGIN_OBJECT) {
+                push(EMPTY_OBJECT);
+                nested++;
+            } else if (token == Token.BEGIN_ARRAY) {
+                push(EMPTY_ARRAY);
+                nested++;
+            } else if (token == Token.END_OBJECT || token == Token.END_ARRAY) {
+                depth--;
+                nested--;
+            }
+        } while (nested > 0);
+    }
+
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = read();
+        }
+        return peeked;
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = null;
+        in.close();
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] grown = new int[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = scope;
+    }
+
+    private Token read() throws IOException {
+        int scope = stack[depth - 1];
+        if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+            int c = nextNonWhitespace();
+            if (c == ']') {
+                return Token.END_ARRAY;
+            }
+            if (scope == NONEMPTY_ARRAY) {
+                if (c != ',') {
+                    throw syntaxError("Expected , or ]");
+                }
+                c = nextNonWhitespace();
+            }
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            return readValue(c);
+        }
+        if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+            int c = nextNonWhitespace();
+            if (c == '}') {
+                return Token.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Expected , or }");
+                }
+                c = nextNonWhitespace();
+            }
+            if (c != '"') {
+                throw syntaxError("Expected a name");
+            }
+            readString();
+            stack[depth - 1] = DANGLING_NAME;
+            return Token.NAME;
+        }
+        if (scope == DANGLING_NAME) {
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected :");
+            }
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            return readValue(nextNonWhitespace());
+        }
+        if (scope == EMPTY_DOCUMENT) {
+            stack[depth - 1] = NONEMPTY_DOCUMENT;
+            return readValue(nextNonWhitespace());
+        }
+        // Only whitespace may follow the top-level value
+        int c = nextNonWhitespaceOrEnd();
+        if (c != -1) {
+            throw syntaxError("Data after the document");
+        }
+        return Token.END_DOCUMENT;
+    }
+
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                readString();
+                return Token.STRING;
+            case 't':
+                readKeyword("true");
+                return Token.BOOLEAN;
+            case 'f':
+                readKeyword("false");
+                return Token.BOOLEAN;
+            case 'n':
+                readKeyword("null");
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber((char) c);
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character");
+        }
+    }
+
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = nextChar();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = nextChar();
+                switch (c) {
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(nextChar(), 16);
+                            if (digit < 0) {
+                                throw syntaxError("Malformed \\u escape");
+                            }
+                            value = (value << 4) | digit;
+                        }
+                        text.append((char) value);
+                        break;
+                    default:
+                        // \" \\ \/ and lenient others
+                        text.append((char) c);
+                }
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private void readKeyword(String keyword) throws IOException {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (nextChar() != keyword.charAt(i)) {
+                throw syntaxError("Expected " + keyword);
+            }
+        }
+        text.setLength(0);
+        text.append(keyword);
+    }
+
+    private void readNumber(char first) throws IOException {
+        text.setLength(0);
+        text.append(first);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                text.append(c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (!isNumber(text)) {
+            throw syntaxError("Malformed number " + text);
+        }
+    }
+
+    /**
+     * -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?
+     */
+    private static boolean isNumber(CharSequence s) {
+        int i = 0;
+        int length = s.length();
+        if (i < length && s.charAt(i) == '-') {
+            i++;
+        }
+        if (i < length && s.charAt(i) == '0') {
+            i++;
+        } else {
+            int start = i;
+            i = skipDigits(s, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && s.charAt(i) == '.') {
+            int start = ++i;
+            i = skipDigits(s, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            i = skipDigits(s, i);
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private static int skipDigits(CharSequence s, int i) {
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private double parseDouble() {
+        try {
+            return Double.parseDouble(text.toString());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Not a number: " + text);
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = nextNonWhitespaceOrEnd();
+        if (c == -1) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return c;
+    }
+
+    private int nextNonWhitespaceOrEnd() throws IOException {
+        while (pos < limit || fill()) {
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private int nextChar() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        pos = 0;
+        limit = Math.max(0, read);
+        return read > 0;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
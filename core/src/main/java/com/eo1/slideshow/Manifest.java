@@ -0,0 +1,121 @@
+package com.eo1.slideshow;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Playlist manifest: every media item the device needs, with its size and
+ * content hash. Format:
+ * {"items": [{"url": "...", "size": 12345, "sha256": "...", "mime": "image/jpeg"}]}
+ */
+public class Manifest {
+
+    public static class Item {
+        public String url;
+        public long size;
+        public String sha256;
+        public String mimeType;
+    }
+
+    private final List<Item> items;
+
+    Manifest(List<Item> items) {
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * Hashes of all referenced content, for garbage collection
+     */
+    public Set<String> referencedHashes() {
+        Set<String> hashes = new HashSet<String>();
+        for (Item item : items) {
+            hashes.add(item.sha256);
+        }
+        return hashes;
+    }
+
+    /**
+     * Items whose content is not in the given set, one per hash
+     * @param present hashes already stored locally
+     */
+    public List<Item> missingFrom(Set<String> present) {
+        List<Item> missing = new ArrayList<Item>();
+        Set<String> seen = new HashSet<String>();
+        for (Item item : items) {
+            if (!present.contains(item.sha256) && seen.add(item.sha256)) {
+                missing.add(item);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Parse a manifest as a stream. Relative URLs are resolved against base;
+     * items without a valid hash are skipped.
+     */
+    public static Manifest parse(Reader in, URL base) throws IOException {
+        List<Item> items = new ArrayList<Item>();
+        JsonStreamReader reader = new JsonStreamReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("items") && reader.peek() == JsonStreamReader.Token.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Item item = parseItem(reader, base);
+                        if (item != null) {
+                            items.add(item);
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown by the reader for unexpected token types
+            throw new IOException("Malformed manifest: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return new Manifest(items);
+    }
+
+    private static Item parseItem(JsonStreamReader reader, URL base) throws IOException {
+        Item item = new Item();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonStreamReader.Token.NULL) {
+                reader.skipValue();
+            } else if (name.equals("url")) {
+                item.url = new URL(base, reader.nextString()).toString();
+            } else if (name.equals("size")) {
+                item.size = reader.nextLong();
+            } else if (name.equals("sha256")) {
+                item.sha256 = reader.nextString().toLowerCase(Locale.US);
+            } else if (name.equals("mime")) {
+                item.mimeType = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (item.url == null || item.sha256 == null || !item.sha256.matches("[0-9a-f]{64}")) {
+            return null;
+        }
+        return item;
+    }
+}
@@ -0,0 +1,56 @@
+package com.eo1.slideshow;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Version response from the update server, parsed as a stream (no
+ * external dependencies)
+ */
+class UpdateInfo {
+    boolean updateAvailable;
+    String downloadUrl;
+    int latestVersion;
+    String sha256;
+    // Optional delta patch from an older installed version
+    String patchUrl;
+    String patchSha256;
+    int patchFromVersion;
+
+    static UpdateInfo parse(Reader in) throws IOException {
+        UpdateInfo info = new UpdateInfo();
+        JsonStreamReader reader = new JsonStreamReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonStreamReader.Token.NULL) {
+                    reader.skipValue();
+                } else if (name.equals("update_available")) {
+                    info.updateAvailable = reader.nextBoolean();
+                } else if (name.equals("download_url")) {
+                    info.downloadUrl = reader.nextString();
+                } else if (name.equals("latest_version")) {
+                    info.latestVersion = reader.nextInt();
+                } else if (name.equals("sha256")) {
+                    info.sha256 = reader.nextString();
+                } else if (name.equals("patch_url")) {
+                    info.patchUrl = reader.nextString();
+                } else if (name.equals("patch_sha256")) {
+                    info.patchSha256 = reader.nextString();
+                } else if (name.equals("patch_from_version")) {
+                    info.patchFromVersion = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown by the reader for unexpected token types
+            throw new IOException("Malformed version response: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return info;
+    }
+}
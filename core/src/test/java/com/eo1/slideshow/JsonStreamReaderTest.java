@@ -0,0 +1,232 @@
+package com.eo1.slideshow;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonStreamReaderTest {
+
+    private static JsonStreamReader reader(String json) {
+        return new JsonStreamReader(new StringReader(json));
+    }
+
+    @Test
+    public void readsNestedDocument() throws IOException {
+        JsonStreamReader reader = reader(
+            "{\"items\": [{\"url\": \"a\", \"tags\": []}, {\"url\": \"b\", \"tags\": [\"x\", null]}],"
+                + " \"ok\": true, \"count\": 2}");
+        reader.beginObject();
+        assertEquals("items", reader.nextName());
+        reader.beginArray();
+        reader.beginObject();
+        assertEquals("url", reader.nextName());
+        assertEquals("a", reader.nextString());
+        assertEquals("tags", reader.nextName());
+        reader.beginArray();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.endObject();
+        reader.beginObject();
+        assertEquals("url", reader.nextName());
+        assertEquals("b", reader.nextString());
+        assertEquals("tags", reader.nextName());
+        reader.beginArray();
+        assertEquals("x", reader.nextString());
+        assertEquals(JsonStreamReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        reader.endArray();
+        reader.endObject();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        assertEquals("ok", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("count", reader.nextName());
+        assertEquals(2, reader.nextInt());
+        reader.endObject();
+        assertEquals(JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void readsDeepNesting() throws IOException {
+        int levels = 100;
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < levels; i++) {
+            json.append('[');
+        }
+        for (int i = 0; i < levels; i++) {
+            json.append(']');
+        }
+        JsonStreamReader reader = reader(json.toString());
+        for (int i = 0; i < levels; i++) {
+            reader.beginArray();
+        }
+        for (int i = 0; i < levels; i++) {
+            reader.endArray();
+        }
+        assertEquals(JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        JsonStreamReader reader = reader("[\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"]");
+        reader.beginArray();
+        assertEquals("a\"b\\c/d\b\f\n\r\t", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void decodesUnicodeEscapes() throws IOException {
+        // BMP character, mixed-case hex, and a surrogate pair kept as two chars
+        JsonStreamReader reader = reader("[\"\\u00e9\\u00C9\", \"\\ud83d\\ude00\", \"\\u0000\"]");
+        reader.beginArray();
+        assertEquals("\u00e9\u00c9", reader.nextString());
+        assertEquals("\ud83d\ude00", reader.nextString());
+        assertEquals("\u0000", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void rejectsMalformedUnicodeEscape() throws IOException {
+        assertMalformed("[\"\\u12g4\"]");
+        assertMalformed("[\"\\u12\"]");
+    }
+
+    @Test
+    public void readsNumbers() throws IOException {
+        JsonStreamReader reader = reader("[0, -7, 2147483648, 1.5, -0.25, 1e3, 2E-2, 4.0, 12]");
+        reader.beginArray();
+        assertEquals(0, reader.nextInt());
+        assertEquals(-7, reader.nextInt());
+        assertEquals(2147483648L, reader.nextLong());
+        assertEquals(1.5, reader.nextDouble(), 0);
+        assertEquals(-0.25, reader.nextDouble(), 0);
+        assertEquals(1000, reader.nextLong());
+        assertEquals(0.02, reader.nextDouble(), 0);
+        assertEquals(4, reader.nextInt());
+        assertEquals("12", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    public void rejectsMalformedNumbers() throws IOException {
+        String[] numbers = {"-", "1e", "1e+", "1.", ".5", "01", "-01", "1.2.3", "1-2", "--1", "1e5e5"};
+        for (String number : numbers) {
+            assertMalformed("[" + number + "]");
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsFractionAsInt() throws IOException {
+        JsonStreamReader reader = reader("[1.5]");
+        reader.beginArray();
+        reader.nextInt();
+    }
+
+    @Test
+    public void skipsValues() throws IOException {
+        JsonStreamReader reader = reader(
+            "{\"a\": {\"b\": [1, {\"c\": null}], \"d\": \"}\"}, \"e\": [[], {}], \"f\": 3, \"g\": \"kept\"}");
+        reader.beginObject();
+        assertEquals("a", reader.nextName());
+        reader.skipValue();
+        assertEquals("e", reader.nextName());
+        reader.skipValue();
+        assertEquals("f", reader.nextName());
+        reader.skipValue();
+        assertEquals("g", reader.nextName());
+        assertEquals("kept", reader.nextString());
+        reader.endObject();
+        assertEquals(JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void skipValueRejectsNonValues() throws IOException {
+        JsonStreamReader reader = reader("{\"a\": [], \"b\": 1}");
+        reader.beginObject();
+        assertSkipRejected(reader, JsonStreamReader.Token.NAME);
+        assertEquals("a", reader.nextName());
+        reader.beginArray();
+        assertSkipRejected(reader, JsonStreamReader.Token.END_ARRAY);
+        reader.endArray();
+        assertEquals("b", reader.nextName());
+        assertEquals(1, reader.nextInt());
+        assertSkipRejected(reader, JsonStreamReader.Token.END_OBJECT);
+        reader.endObject();
+        assertSkipRejected(reader, JsonStreamReader.Token.END_DOCUMENT);
+    }
+
+    @Test
+    public void wrongCallThrowsIllegalState() throws IOException {
+        JsonStreamReader reader = reader("{\"a\": 1}");
+        try {
+            reader.beginArray();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // The token is still there for the right call
+        reader.beginObject();
+        try {
+            reader.nextString();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("a", reader.nextName());
+    }
+
+    @Test
+    public void rejectsMalformedSyntax() throws IOException {
+        String[] documents = {
+            "", "{", "[1,]", "[1 2]", "{\"a\" 1}", "{\"a\": 1,}", "{a: 1}", "[tru]", "[nul]",
+            "[\"open", "{} {}", "[1]x", "[@]"
+        };
+        for (String document : documents) {
+            assertMalformed(document);
+        }
+    }
+
+    /**
+     * Read everything; the document must fail with IOException somewhere
+     */
+    private static void assertMalformed(String json) throws IOException {
+        JsonStreamReader reader = reader(json);
+        try {
+            readAll(reader);
+            fail("Accepted " + json);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Malformed JSON"));
+        }
+    }
+
+    private static void readAll(JsonStreamReader reader) throws IOException {
+        do {
+            JsonStreamReader.Token token = reader.peek();
+            switch (token) {
+                case BEGIN_OBJECT: reader.beginObject(); break;
+                case END_OBJECT: reader.endObject(); break;
+                case BEGIN_ARRAY: reader.beginArray(); break;
+                case END_ARRAY: reader.endArray(); break;
+                case NAME: reader.nextName(); break;
+                case BOOLEAN: reader.nextBoolean(); break;
+                case NULL: reader.nextNull(); break;
+                case END_DOCUMENT: return;
+                default: reader.nextString();
+            }
+        } while (true);
+    }
+
+    private static void assertSkipRejected(JsonStreamReader reader, JsonStreamReader.Token token) throws IOException {
+        assertEquals(token, reader.peek());
+        try {
+            reader.skipValue();
+            fail("Skipped " + token);
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(token, reader.peek());
+    }
+}